@@ -0,0 +1,108 @@
+package uk.co.pueblo.msm.msmcore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import uk.co.pueblo.msm.msmcore.MsmDb;
+
+/**
+ * Base state for benchmarks that use a generated Money file. The file is
+ * generated once per trial and each benchmark works on a fresh copy of it. The
+ * scale of the file is set by the {@code securities} and {@code years}
+ * parameters. An encrypted file is benchmarked by setting the {@code template}
+ * parameter to an empty encrypted Money file and {@code password} to its
+ * password.
+ */
+@State(Scope.Benchmark)
+public abstract class MoneyFileBenchmark {
+
+	// Parameters
+	@Param("1000")
+	public int securities;
+
+	@Param("5")
+	public int years;
+
+	@Param("")
+	public String template;
+
+	@Param("")
+	public String password;
+
+	@Param("DIRECT")
+	public MsmDb.OpenMode openMode;
+
+	// Instance variables
+	private Path dir;
+	private File master;
+	File work;
+
+	@Setup(Level.Trial)
+	public void generate() throws IOException, SQLException {
+		dir = Files.createTempDirectory("msmcore-bench");
+		master = dir.resolve("master.mny").toFile();
+		work = dir.resolve("work.mny").toFile();
+		MoneyFileGenerator generator = new MoneyFileGenerator(securities, years);
+		if (template.isEmpty()) {
+			generator.generate(master);
+		} else {
+			generator.generate(master, new File(template), password);
+		}
+		return;
+	}
+
+	@TearDown(Level.Trial)
+	public void delete() throws IOException {
+		try (Stream<Path> paths = Files.walk(dir)) {
+			paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+		return;
+	}
+
+	/**
+	 * Replaces the working copy of the Money file with a fresh copy of the
+	 * generated file.
+	 *
+	 * @throws IOException
+	 */
+	void copy() throws IOException {
+		Files.copy(master.toPath(), work.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return;
+	}
+
+	/**
+	 * Opens the working copy of the Money file.
+	 *
+	 * @return the Money database instance
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	MsmDb open() throws IOException, SQLException {
+		return new MsmDb(work.getPath(), password, openMode);
+	}
+
+	/**
+	 * Closes the working copy of the Money file and deletes its lock file.
+	 *
+	 * @param msmDb the Money database instance
+	 * @throws IOException
+	 */
+	void close(MsmDb msmDb) throws IOException {
+		msmDb.closeDb();
+		MoneyFileGenerator.deleteLockFile(work.getPath());
+		return;
+	}
+}
\ No newline at end of file
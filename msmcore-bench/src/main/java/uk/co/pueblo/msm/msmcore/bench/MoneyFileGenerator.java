@@ -0,0 +1,295 @@
+package uk.co.pueblo.msm.msmcore.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.healthmarketscience.jackcess.ColumnBuilder;
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
+import com.healthmarketscience.jackcess.DataType;
+import com.healthmarketscience.jackcess.Database;
+import com.healthmarketscience.jackcess.DatabaseBuilder;
+import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.Table;
+import com.healthmarketscience.jackcess.TableBuilder;
+import com.healthmarketscience.jackcess.util.OleBlob;
+
+import uk.co.pueblo.msm.msmcore.MsmDb;
+import uk.co.pueblo.msm.msmcore.MsmDb.DhdDataValue;
+
+/**
+ * Generates synthetic Money files for benchmarking. A generated file holds the
+ * tables and columns used by msmcore: DHD with its data blob, CLI_DAT, CNTRY,
+ * SEC, SP, CRNC and CRNC_EXCHG. Each security has a daily price history, on
+ * weekdays only, written in shuffled batches so that the physical row order of
+ * the SP table is not the primary key order.
+ * <p>
+ * Jackcess cannot create encrypted files, so an encrypted file is generated by
+ * populating a copy of an empty Money file that was created by Money itself.
+ * Note that a Money file is limited to 2 GB, which is about 20 million SP rows.
+ */
+public class MoneyFileGenerator {
+
+	// Constants
+	static final String[] CNTRY_CODES = { "GB", "US", "DE", "FR", "JP" };
+	static final String[] ISO_CODES = { "GBP", "USD", "EUR", "JPY", "CHF", "AUD", "CAD" };
+	static final int SRC_BUY = 1;
+	static final int SRC_MANUAL = 5;
+	static final int SRC_ONLINE = 6;
+	private static final String[] SEC_QUOTE_COLS = { "d52WeekLow", "d52WeekHigh", "dBid", "dAsk", "dCapitalization", "dSharesOutstanding", "dDividendYield", "dChange", "dOpen", "dHigh", "dLow", "vol", "dPE", "dPrice" };
+	private static final String[] SP_QUOTE_COLS = { "dPrice", "dChange", "dOpen", "dHigh", "dLow", "vol" };
+	private static final int SP_BATCH_SIZE = 10000;
+	private static final int DHD_DATA_LEN = 512;
+	private static final int CLI_DAT_FILENAME = 65541;
+	private static final int CLI_DAT_OLUPDATE = 917505;
+
+	// Instance variables
+	private final int securities;
+	private final int years;
+	private final Random random;
+	private final LocalDate lastDate;
+
+	/**
+	 * @param securities the number of securities to generate
+	 * @param years      the number of years of daily price history to generate
+	 *                   for each security
+	 */
+	public MoneyFileGenerator(int securities, int years) {
+		this.securities = securities;
+		this.years = years;
+		this.random = new Random(securities * 31L + years);
+		this.lastDate = LocalDate.now().minusDays(1);
+	}
+
+	/**
+	 * Generates an unencrypted Money file.
+	 *
+	 * @param file the file to create, which is replaced if it exists
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public void generate(File file) throws IOException, SQLException {
+		Files.deleteIfExists(file.toPath());
+		createTables(file);
+		populate(file, "");
+		return;
+	}
+
+	/**
+	 * Generates a Money file from a template, which may be encrypted.
+	 *
+	 * @param file     the file to create, which is replaced if it exists
+	 * @param template an empty Money file to copy
+	 * @param password the password for the template, or an empty string if none
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public void generate(File file, File template, String password) throws IOException, SQLException {
+		Files.copy(template.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		populate(file, password);
+		return;
+	}
+
+	/**
+	 * Gets the symbol of a generated security.
+	 *
+	 * @param n the number of the security, from 1
+	 * @return the symbol
+	 */
+	public static String getSymbol(int n) {
+		return (n % 7 == 0 ? "GB:" : "") + "SYM" + n;
+	}
+
+	/**
+	 * Gets the generated currency pairs, from the base currency to each other
+	 * currency.
+	 *
+	 * @return the currency pair symbols
+	 */
+	public static String[] getCurrencyPairs() {
+		String[] pairs = new String[ISO_CODES.length - 1];
+		for (int i = 1; i < ISO_CODES.length; i++) {
+			pairs[i - 1] = ISO_CODES[0] + ISO_CODES[i];
+		}
+		return pairs;
+	}
+
+	/**
+	 * Deletes the lock file that msmcore creates for a Money file.
+	 *
+	 * @param fileName the name of the Money file
+	 * @throws IOException
+	 */
+	public static void deleteLockFile(String fileName) throws IOException {
+		int i = fileName.lastIndexOf('.');
+		Files.deleteIfExists(new File((i <= 0 ? fileName : fileName.substring(0, i)) + ".lrd").toPath());
+		return;
+	}
+
+	/**
+	 * Creates the msmcore tables in a new file, with the rows that do not depend
+	 * on the scale of the file.
+	 */
+	private void createTables(File file) throws IOException {
+		try (Database db = DatabaseBuilder.newDatabase(file).setFileFormat(Database.FileFormat.V2000).create()) {
+			Table dhdTable = new TableBuilder("DHD").addColumn(new ColumnBuilder("hdhd", DataType.LONG)).addColumn(new ColumnBuilder("hcrncDef", DataType.LONG)).addColumn(new ColumnBuilder("rgbNhdata", DataType.OLE)).setPrimaryKey("hdhd").toTable(db);
+			Table cliDatTable = new TableBuilder("CLI_DAT").addColumn(new ColumnBuilder("idData", DataType.LONG)).addColumn(new ColumnBuilder("rgbVal", DataType.MEMO)).addColumn(new ColumnBuilder("dtVal", DataType.SHORT_DATE_TIME)).setPrimaryKey("idData").toTable(db);
+			Table cntryTable = new TableBuilder("CNTRY").addColumn(new ColumnBuilder("hcntry", DataType.LONG)).addColumn(new ColumnBuilder("szCode", DataType.TEXT)).setPrimaryKey("hcntry").toTable(db);
+			TableBuilder secBuilder = new TableBuilder("SEC").addColumn(new ColumnBuilder("hsec", DataType.LONG)).addColumn(new ColumnBuilder("szSymbol", DataType.TEXT)).addColumn(new ColumnBuilder("hcntry", DataType.LONG)).addColumn(new ColumnBuilder("fOLQuotes", DataType.BOOLEAN))
+					.addColumn(new ColumnBuilder("mComment", DataType.MEMO)).addColumn(new ColumnBuilder("dtLastUpdate", DataType.SHORT_DATE_TIME));
+			for (String col : SEC_QUOTE_COLS) {
+				secBuilder.addColumn(new ColumnBuilder(col, DataType.DOUBLE));
+			}
+			secBuilder.setPrimaryKey("hsec").toTable(db);
+			TableBuilder spBuilder = new TableBuilder("SP").addColumn(new ColumnBuilder("hsp", DataType.LONG)).addColumn(new ColumnBuilder("hsec", DataType.LONG)).addColumn(new ColumnBuilder("dt", DataType.SHORT_DATE_TIME)).addColumn(new ColumnBuilder("dtSerial", DataType.SHORT_DATE_TIME))
+					.addColumn(new ColumnBuilder("src", DataType.LONG));
+			for (String col : SP_QUOTE_COLS) {
+				spBuilder.addColumn(new ColumnBuilder(col, DataType.DOUBLE));
+			}
+			spBuilder.setPrimaryKey("hsp").toTable(db);
+			Table crncTable = new TableBuilder("CRNC").addColumn(new ColumnBuilder("hcrnc", DataType.LONG)).addColumn(new ColumnBuilder("szIsoCode", DataType.TEXT)).addColumn(new ColumnBuilder("fOnline", DataType.BOOLEAN)).addColumn(new ColumnBuilder("fHidden", DataType.BOOLEAN)).setPrimaryKey("hcrnc").toTable(db);
+			Table fxTable = new TableBuilder("CRNC_EXCHG").addColumn(new ColumnBuilder("hcrncex", DataType.LONG)).addColumn(new ColumnBuilder("hcrncFrom", DataType.LONG)).addColumn(new ColumnBuilder("hcrncTo", DataType.LONG)).addColumn(new ColumnBuilder("rate", DataType.DOUBLE))
+					.addColumn(new ColumnBuilder("dt", DataType.SHORT_DATE_TIME)).setPrimaryKey("hcrncex").toTable(db);
+
+			// Fixed rows
+			cliDatTable.addRow(CLI_DAT_FILENAME, file.getName(), null);
+			cliDatTable.addRow(CLI_DAT_OLUPDATE, null, lastDate.atStartOfDay());
+			for (int i = 0; i < CNTRY_CODES.length; i++) {
+				cntryTable.addRow(i + 1, CNTRY_CODES[i]);
+			}
+			for (int i = 0; i < ISO_CODES.length; i++) {
+				crncTable.addRow(i + 1, ISO_CODES[i], true, false);
+			}
+			// Exchange rates from the base currency, with every other pair stored in reverse
+			for (int i = 1; i < ISO_CODES.length; i++) {
+				if (i % 2 == 0) {
+					fxTable.addRow(i, i + 1, 1, 1 / (1.0 + i / 10.0), lastDate.atStartOfDay());
+				} else {
+					fxTable.addRow(i, 1, i + 1, 1.0 + i / 10.0, lastDate.atStartOfDay());
+				}
+			}
+
+			// DHD row, with the next primary keys set when the file is populated
+			dhdTable.addRow(1, 1, OleBlob.Builder.fromInternalData(new byte[DHD_DATA_LEN]));
+		}
+		return;
+	}
+
+	/**
+	 * Adds the securities and their price histories to a file that already holds
+	 * the msmcore tables, and updates the next primary keys in the DHD table.
+	 */
+	private void populate(File file, String password) throws IOException, SQLException {
+		MsmDb msmDb = new MsmDb(file.getPath(), password);
+		try {
+			Database db = msmDb.getDb();
+
+			// Get the country handles
+			List<Integer> hcntrys = new ArrayList<>();
+			Cursor cntryCursor = CursorBuilder.createCursor(db.getTable("CNTRY"));
+			Row row;
+			while ((row = cntryCursor.getNextRow(Collections.singleton("hcntry"))) != null) {
+				hcntrys.add((Integer) row.get("hcntry"));
+			}
+
+			// Securities
+			Table secTable = db.getTable("SEC");
+			Table spTable = db.getTable("SP");
+			int hsec = Math.max(1, msmDb.getDhdDataInt(DhdDataValue.SEC_NEXT_PK));
+			int hsp = Math.max(1, msmDb.getDhdDataInt(DhdDataValue.SP_NEXT_PK));
+			LocalDate firstDate = lastDate.minusYears(years);
+			List<Map<String, Object>> secRows = new ArrayList<>();
+			List<Map<String, Object>> spRows = new ArrayList<>(SP_BATCH_SIZE);
+			for (int n = 1; n <= securities; n++, hsec++) {
+				double price = 1 + random.nextInt(10000) / 100.0;
+				Map<String, Object> secRow = new HashMap<>();
+				secRow.put("hsec", hsec);
+				secRow.put("szSymbol", getSymbol(n));
+				secRow.put("hcntry", hcntrys.isEmpty() ? null : hcntrys.get(n % hcntrys.size()));
+				secRow.put("fOLQuotes", n % 10 != 0);
+				secRow.put("mComment", n % 3 == 0 ? "Comment " + n : null);
+				secRow.put("dtLastUpdate", lastDate.atTime(16, 30));
+				for (String col : SEC_QUOTE_COLS) {
+					secRow.put(col, price);
+				}
+				secRows.add(secRow);
+
+				// Daily price history
+				for (LocalDate date = firstDate; !date.isAfter(lastDate); date = date.plusDays(1)) {
+					if (date.getDayOfWeek() == DayOfWeek.SATURDAY || date.getDayOfWeek() == DayOfWeek.SUNDAY) {
+						continue;
+					}
+					price = Math.max(0.01, price * (1 + (random.nextGaussian() / 100)));
+					Map<String, Object> spRow = new HashMap<>();
+					LocalDateTime dt = date.atStartOfDay();
+					spRow.put("hsp", hsp++);
+					spRow.put("hsec", hsec);
+					spRow.put("dt", dt);
+					spRow.put("dtSerial", dt.plusHours(18));
+					int r = random.nextInt(50);
+					spRow.put("src", r == 0 ? SRC_BUY : r == 1 ? SRC_MANUAL : SRC_ONLINE);
+					for (String col : SP_QUOTE_COLS) {
+						spRow.put(col, price);
+					}
+					spRows.add(spRow);
+					if (spRows.size() == SP_BATCH_SIZE) {
+						addShuffled(spTable, spRows);
+					}
+				}
+			}
+			addShuffled(spTable, spRows);
+			secTable.addRowsFromMaps(secRows);
+
+			// Next primary keys
+			msmDb.setDhdDataInt(DhdDataValue.SEC_NEXT_PK, hsec);
+			msmDb.setDhdDataInt(DhdDataValue.SP_NEXT_PK, hsp);
+		} finally {
+			msmDb.closeDb();
+			deleteLockFile(file.getPath());
+		}
+		return;
+	}
+
+	private void addShuffled(Table table, List<Map<String, Object>> rows) throws IOException {
+		Collections.shuffle(rows, random);
+		table.addRowsFromMaps(rows);
+		rows.clear();
+		return;
+	}
+
+	/**
+	 * Generates a Money file from the command line.
+	 *
+	 * @param args the file to create, the number of securities, the number of
+	 *             years of price history, and optionally a template Money file and
+	 *             its password
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3 && args.length != 5) {
+			System.err.println("Usage: MoneyFileGenerator <file> <securities> <years> [<template> <password>]");
+			System.exit(1);
+		}
+		MoneyFileGenerator generator = new MoneyFileGenerator(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+		File file = new File(args[0]);
+		if (args.length == 5) {
+			generator.generate(file, new File(args[3]), args[4]);
+		} else {
+			generator.generate(file);
+		}
+		System.out.println("Generated " + file + ": " + file.length() / 1024 + " KiB");
+		return;
+	}
+}
\ No newline at end of file
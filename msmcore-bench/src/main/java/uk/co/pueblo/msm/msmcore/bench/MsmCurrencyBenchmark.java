@@ -0,0 +1,69 @@
+package uk.co.pueblo.msm.msmcore.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.pueblo.msm.msmcore.MsmCurrency;
+import uk.co.pueblo.msm.msmcore.MsmDb;
+import uk.co.pueblo.msm.msmcore.MsmInstrumentException;
+
+/**
+ * Benchmarks currency quote updates. Each quote changes the rate, so every
+ * quote writes to the CRNC_EXCHG table.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.properties")
+public class MsmCurrencyBenchmark extends MoneyFileBenchmark {
+
+	// Instance variables
+	private final String[] pairs = MoneyFileGenerator.getCurrencyPairs();
+	private final String today = LocalDate.now().toString();
+	private MsmDb msmDb;
+	private MsmCurrency msmCurrency;
+	private long count;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException, SQLException {
+		copy();
+		msmDb = open();
+		msmCurrency = new MsmCurrency(msmDb);
+		msmCurrency.prewarm().join();
+		return;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		close(msmDb);
+		return;
+	}
+
+	@Benchmark
+	public void update() throws IOException, MsmInstrumentException {
+		count++;
+		Map<String, Object> quote = new HashMap<>();
+		quote.put("xSymbol", pairs[(int) (count % pairs.length)]);
+		quote.put("xType", "CURRENCY");
+		quote.put("rate", 1 + (count % 1000) / 1000.0);
+		quote.put("dt", today);
+		msmCurrency.update(quote);
+		return;
+	}
+}
\ No newline at end of file
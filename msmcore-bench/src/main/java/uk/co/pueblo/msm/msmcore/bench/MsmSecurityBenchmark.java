@@ -0,0 +1,121 @@
+package uk.co.pueblo.msm.msmcore.bench;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.pueblo.msm.msmcore.MsmDb;
+import uk.co.pueblo.msm.msmcore.MsmInstrumentException;
+import uk.co.pueblo.msm.msmcore.MsmSecurity;
+
+/**
+ * Benchmarks security quote updates and symbol lists. Each iteration works on a
+ * fresh copy of the generated Money file. Quotes are applied for each security
+ * in turn, and each pass over the securities quotes a new day, so every quote
+ * adds a row to the SP table. SEC table updates are buffered when the
+ * writeBehind parameter is set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j2.configurationFile=log4j2-bench.properties")
+public class MsmSecurityBenchmark extends MoneyFileBenchmark {
+
+	// Constants
+	private static final int BATCH_SIZE = 100;
+	private static final String[] QUOTE_COLS = { "dPrice", "d52WeekLow", "d52WeekHigh", "dBid", "dAsk", "dCapitalization", "dSharesOutstanding", "dDividendYield", "dChange", "dOpen", "dHigh", "dLow", "vol", "dPE" };
+
+	// Parameters
+	@Param("false")
+	public boolean writeBehind;
+
+	// Instance variables
+	private MsmDb msmDb;
+	private MsmSecurity msmSecurity;
+	private int next;
+	private LocalDate quoteDate;
+
+	@Setup(Level.Iteration)
+	public void setUp() throws IOException, SQLException {
+		copy();
+		msmDb = open();
+		msmSecurity = new MsmSecurity(msmDb);
+		msmSecurity.prewarm().join();
+		msmSecurity.setWriteBehind(writeBehind);
+		next = 0;
+		quoteDate = LocalDate.now();
+		return;
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException, SQLException {
+		msmSecurity.addNewRows();
+		close(msmDb);
+		return;
+	}
+
+	private Map<String, Object> nextQuote() {
+		if (next == securities) {
+			next = 0;
+			quoteDate = quoteDate.plusDays(1);
+		}
+		next++;
+		Map<String, Object> quote = new HashMap<>();
+		quote.put("xSymbol", MoneyFileGenerator.getSymbol(next));
+		quote.put("xType", "EQUITY");
+		quote.put("dt", quoteDate.toString());
+		quote.put("dtLastUpdate", quoteDate + "T16:30:00Z");
+		double price = 1 + next % 100 / 10.0;
+		for (String col : QUOTE_COLS) {
+			quote.put(col, price);
+		}
+		return quote;
+	}
+
+	@Benchmark
+	public void update() throws IOException, MsmInstrumentException {
+		msmSecurity.update(nextQuote());
+		return;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public void updateAndAddNewRows() throws IOException, SQLException, MsmInstrumentException {
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			msmSecurity.update(nextQuote());
+		}
+		msmSecurity.addNewRows();
+		return;
+	}
+
+	@Benchmark
+	public List<String[]> getSymbols() throws IOException {
+		return msmSecurity.getSymbols();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public MsmSecurity load() throws IOException, SQLException {
+		MsmSecurity newMsmSecurity = new MsmSecurity(msmDb);
+		newMsmSecurity.prewarm().join();
+		return newMsmSecurity;
+	}
+}
\ No newline at end of file
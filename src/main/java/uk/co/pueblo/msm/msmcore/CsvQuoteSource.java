@@ -0,0 +1,130 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A quote source that reads comma-separated values. The first line holds the
+ * column names and each following line holds one quote row. Fields may be
+ * enclosed in double quotes, with embedded double quotes doubled. Empty fields
+ * are treated as missing values.
+ */
+public class CsvQuoteSource extends QuoteSource {
+
+	// Constants
+	private static final int END_FIELD = 0;
+	private static final int END_RECORD = 1;
+	private static final int END_SOURCE = 2;
+
+	// Instance variables
+	private final StringBuilder field = new StringBuilder();
+	private int columns = 0; // number of columns, or 0 if header not yet read
+
+	/**
+	 * @param is the UTF-8 input stream to read CSV quote data from
+	 */
+	public CsvQuoteSource(InputStream is) {
+		super(is);
+	}
+
+	/**
+	 * @param path the UTF-8 CSV file to read quote data from
+	 * @throws IOException
+	 */
+	public CsvQuoteSource(Path path) throws IOException {
+		super(path);
+	}
+
+	private void readHeader() throws IOException {
+		int end;
+		do {
+			end = readField();
+			if (field.length() == 0) {
+				throw malformed("empty column name in header");
+			}
+			row.addColumn(field.toString().trim());
+		} while (end == END_FIELD);
+		columns = row.getColumnCount();
+		return;
+	}
+
+	@Override
+	public QuoteRow next() throws IOException {
+		if (columns == 0) {
+			readHeader();
+		}
+		int end;
+		// Skip blank lines
+		while (true) {
+			int c = peek();
+			if (c == -1) {
+				return null;
+			} else if (c == '\r' || c == '\n') {
+				read();
+			} else {
+				break;
+			}
+		}
+		int index = 0;
+		do {
+			end = readField();
+			if (index == columns) {
+				throw malformed("more fields than columns");
+			}
+			row.set(index, field.length() == 0 ? null : toValue(row.getColumnName(index), field.toString()));
+			index++;
+		} while (end == END_FIELD);
+		row.clear(index);
+		return row;
+	}
+
+	/**
+	 * Reads the next field into the field buffer.
+	 *
+	 * @return how the field ended
+	 * @throws IOException
+	 */
+	private int readField() throws IOException {
+		field.setLength(0);
+		int c = read();
+		if (c == '"') {
+			// Quoted field
+			while (true) {
+				c = read();
+				if (c == -1) {
+					throw malformed("unterminated quoted field");
+				} else if (c == '"') {
+					if (peek() == '"') {
+						field.append((char) read());
+					} else {
+						c = read();
+						break;
+					}
+				} else {
+					field.append((char) c);
+				}
+			}
+		} else {
+			while (c != ',' && c != '\r' && c != '\n' && c != -1) {
+				field.append((char) c);
+				c = read();
+			}
+		}
+		switch (c) {
+		case ',':
+			return END_FIELD;
+		case '\r':
+			if (peek() == '\n') {
+				read();
+			}
+			return END_RECORD;
+		case '\n':
+			return END_RECORD;
+		case -1:
+			return END_SOURCE;
+		default:
+			throw malformed("unexpected character after quoted field: " + (char) c);
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,176 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
+import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.RowId;
+import com.healthmarketscience.jackcess.Table;
+
+/**
+ * An in-memory copy of the CRNC_EXCHG table as a dense hcrnc by hcrnc matrix
+ * of exchange rates and row locations.
+ */
+class FxMatrix {
+
+	// Constants
+	private static final Logger LOGGER = LogManager.getLogger(FxMatrix.class);
+	private static final List<String> MATRIX_COLS = List.of("hcrncFrom", "hcrncTo", "rate");
+
+	// Instance variables
+	private final int[] slots; // matrix slot indexed by hcrnc, or -1 if none
+	private final int size;
+	private final double[] rates;
+	private final RowId[] rowIds;
+	private final int[] positions; // position in table primary key order
+	private int[] hcrncFroms; // from hcrnc by position in table primary key order
+	private int[] hcrncTos; // to hcrnc by position in table primary key order
+
+	private FxMatrix(int[] slots, int size) {
+		this.slots = slots;
+		this.size = size;
+		rates = new double[size * size];
+		rowIds = new RowId[size * size];
+		positions = new int[size * size];
+	}
+
+	/**
+	 * Builds the matrix with a single pass over the CRNC_EXCHG table in primary
+	 * key order. Where a currency pair has more than one row the first is used.
+	 *
+	 * @param fxTable the CRNC_EXCHG table
+	 * @return the matrix
+	 * @throws IOException
+	 */
+	static FxMatrix build(Table fxTable) throws IOException {
+		List<Row> fxRows = new ArrayList<>();
+		Cursor fxCursor = CursorBuilder.createCursor(fxTable.getPrimaryKeyIndex());
+		Row row;
+		int maxHcrnc = -1;
+		while ((row = fxCursor.getNextRow(MATRIX_COLS)) != null) {
+			if (row.get("hcrncFrom") == null || row.get("hcrncTo") == null || row.get("rate") == null) {
+				continue;
+			}
+			maxHcrnc = Math.max(maxHcrnc, Math.max((int) row.get("hcrncFrom"), (int) row.get("hcrncTo")));
+			fxRows.add(row);
+		}
+
+		// Allocate a matrix slot to each currency
+		int[] slots = new int[maxHcrnc + 1];
+		Arrays.fill(slots, -1);
+		int size = 0;
+		for (Row fxRow : fxRows) {
+			for (String col : new String[] { "hcrncFrom", "hcrncTo" }) {
+				int hcrnc = (int) fxRow.get(col);
+				if (hcrnc >= 0 && slots[hcrnc] < 0) {
+					slots[hcrnc] = size++;
+				}
+			}
+		}
+
+		FxMatrix fxMatrix = new FxMatrix(slots, size);
+		fxMatrix.hcrncFroms = new int[fxRows.size()];
+		fxMatrix.hcrncTos = new int[fxRows.size()];
+		for (int position = 0; position < fxRows.size(); position++) {
+			Row fxRow = fxRows.get(position);
+			fxMatrix.hcrncFroms[position] = (int) fxRow.get("hcrncFrom");
+			fxMatrix.hcrncTos[position] = (int) fxRow.get("hcrncTo");
+			int i = fxMatrix.index(fxMatrix.hcrncFroms[position], fxMatrix.hcrncTos[position]);
+			if (i >= 0 && fxMatrix.rowIds[i] == null) {
+				fxMatrix.rates[i] = (double) fxRow.get("rate");
+				fxMatrix.rowIds[i] = fxRow.getId();
+				fxMatrix.positions[i] = position;
+			}
+		}
+		LOGGER.debug("Built CRNC_EXCHG table matrix: currencies={}, rates={}", size, fxRows.size());
+		return fxMatrix;
+	}
+
+	/**
+	 * Gets the position of a currency pair in the matrix.
+	 *
+	 * @param hcrncFrom the hcrnc of the from currency
+	 * @param hcrncTo   the hcrnc of the to currency
+	 * @return the position, or -1 if either currency is not in the matrix
+	 */
+	private int index(int hcrncFrom, int hcrncTo) {
+		if (hcrncFrom < 0 || hcrncTo < 0 || hcrncFrom >= slots.length || hcrncTo >= slots.length || slots[hcrncFrom] < 0 || slots[hcrncTo] < 0) {
+			return -1;
+		}
+		return slots[hcrncFrom] * size + slots[hcrncTo];
+	}
+
+	/**
+	 * Checks whether the CRNC_EXCHG table has a row for a currency pair.
+	 *
+	 * @param hcrncFrom the hcrnc of the from currency
+	 * @param hcrncTo   the hcrnc of the to currency
+	 * @return true if the pair has a row, otherwise false
+	 */
+	boolean contains(int hcrncFrom, int hcrncTo) {
+		int i = index(hcrncFrom, hcrncTo);
+		return i >= 0 && rowIds[i] != null;
+	}
+
+	double getRate(int hcrncFrom, int hcrncTo) {
+		return rates[index(hcrncFrom, hcrncTo)];
+	}
+
+	void setRate(int hcrncFrom, int hcrncTo, double rate) {
+		rates[index(hcrncFrom, hcrncTo)] = rate;
+		return;
+	}
+
+	/**
+	 * Gets the position of the row for a currency pair in the CRNC_EXCHG table
+	 * primary key order.
+	 *
+	 * @param hcrncFrom the hcrnc of the from currency
+	 * @param hcrncTo   the hcrnc of the to currency
+	 * @return the position, or -1 if the pair has no row
+	 */
+	int getPosition(int hcrncFrom, int hcrncTo) {
+		return contains(hcrncFrom, hcrncTo) ? positions[index(hcrncFrom, hcrncTo)] : -1;
+	}
+
+	RowId getRowId(int hcrncFrom, int hcrncTo) {
+		return rowIds[index(hcrncFrom, hcrncTo)];
+	}
+
+	/**
+	 * Gets the number of rows in the CRNC_EXCHG table, including any rows for a
+	 * currency pair that are not held in the matrix.
+	 *
+	 * @return the number of rows
+	 */
+	int getRowCount() {
+		return hcrncFroms.length;
+	}
+
+	/**
+	 * Gets the from currency of a row in the CRNC_EXCHG table.
+	 *
+	 * @param position the position of the row in table primary key order
+	 * @return the hcrnc of the from currency
+	 */
+	int getHcrncFrom(int position) {
+		return hcrncFroms[position];
+	}
+
+	/**
+	 * Gets the to currency of a row in the CRNC_EXCHG table.
+	 *
+	 * @param position the position of the row in table primary key order
+	 * @return the hcrnc of the to currency
+	 */
+	int getHcrncTo(int position) {
+		return hcrncTos[position];
+	}
+}
\ No newline at end of file
@@ -0,0 +1,144 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A graph of exchange rate quotes between currencies, from which the rate
+ * between any two connected currencies is found by triangulation. Each group
+ * of connected currencies has a root currency, and the rate from the root to
+ * every currency in the group is found once with a breadth-first walk of the
+ * quotes, so that a cross rate is the ratio of two of these rates. The group
+ * containing the base currency is rooted at the base currency, and the rate of
+ * a quoted currency pair is the quoted rate, so that these rates are exactly
+ * the rates that a single quote update would write.
+ */
+class FxRateGraph {
+
+	// Instance variables
+	private final int baseHcrnc;
+	private final Map<Long, Quote> quotes = new LinkedHashMap<>(); // quote by currency pair, latest quote only
+	private Map<Integer, Integer> roots = null; // root currency of each currency
+	private Map<Integer, Double> rootRates = null; // rate from root currency to each currency
+
+	/**
+	 * An exchange rate from one currency to another.
+	 */
+	private static final class Quote {
+
+		// Instance variables
+		final int hcrncFrom;
+		final int hcrncTo;
+		final double rate;
+
+		Quote(int hcrncFrom, int hcrncTo, double rate) {
+			this.hcrncFrom = hcrncFrom;
+			this.hcrncTo = hcrncTo;
+			this.rate = rate;
+		}
+	}
+
+	/**
+	 * @param baseHcrnc the hcrnc of the base currency
+	 */
+	FxRateGraph(int baseHcrnc) {
+		this.baseHcrnc = baseHcrnc;
+	}
+
+	/**
+	 * Adds a quote to the graph, replacing any earlier quote for the same currency
+	 * pair in either direction.
+	 *
+	 * @param hcrncFrom the hcrnc of the from currency
+	 * @param hcrncTo   the hcrnc of the to currency
+	 * @param rate      the exchange rate
+	 */
+	void addQuote(int hcrncFrom, int hcrncTo, double rate) {
+		quotes.put(pairKey(hcrncFrom, hcrncTo), new Quote(hcrncFrom, hcrncTo, rate));
+		roots = null;
+		return;
+	}
+
+	/**
+	 * Gets the exchange rate between two currencies.
+	 *
+	 * @param hcrncFrom the hcrnc of the from currency
+	 * @param hcrncTo   the hcrnc of the to currency
+	 * @return the exchange rate, or NaN if the currencies are not connected by
+	 *         quotes
+	 */
+	double getRate(int hcrncFrom, int hcrncTo) {
+		Quote quote = quotes.get(pairKey(hcrncFrom, hcrncTo));
+		if (quote != null) {
+			return quote.hcrncFrom == hcrncFrom ? quote.rate : 1 / quote.rate;
+		}
+		if (roots == null) {
+			walk();
+		}
+		Integer rootFrom = roots.get(hcrncFrom);
+		if (rootFrom == null || !rootFrom.equals(roots.get(hcrncTo))) {
+			return Double.NaN;
+		}
+		return rootRates.get(hcrncTo) / rootRates.get(hcrncFrom);
+	}
+
+	private void walk() {
+		// Build adjacency lists of quotes in both directions
+		Map<Integer, List<Quote>> edges = new HashMap<>();
+		for (Quote quote : quotes.values()) {
+			edges.computeIfAbsent(quote.hcrncFrom, k -> new ArrayList<>()).add(quote);
+			edges.computeIfAbsent(quote.hcrncTo, k -> new ArrayList<>()).add(new Quote(quote.hcrncTo, quote.hcrncFrom, 1 / quote.rate));
+		}
+
+		// Find the rate from the root of each group to each currency in the group
+		roots = new HashMap<>();
+		rootRates = new HashMap<>();
+		if (edges.containsKey(baseHcrnc)) {
+			walk(baseHcrnc, edges);
+		}
+		for (int root : edges.keySet()) {
+			if (!roots.containsKey(root)) {
+				walk(root, edges);
+			}
+		}
+		return;
+	}
+
+	private void walk(int root, Map<Integer, List<Quote>> edges) {
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		roots.put(root, root);
+		rootRates.put(root, 1.0);
+		queue.add(root);
+		while (!queue.isEmpty()) {
+			int hcrnc = queue.poll();
+			double rootRate = rootRates.get(hcrnc);
+			for (Quote edge : edges.get(hcrnc)) {
+				int next = edge.hcrncTo;
+				if (!roots.containsKey(next)) {
+					roots.put(next, root);
+					rootRates.put(next, rootRate * edge.rate);
+					queue.add(next);
+				}
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Gets the key of a currency pair, which is the same in either direction.
+	 *
+	 * @param hcrnc0 the hcrnc of one currency
+	 * @param hcrnc1 the hcrnc of the other currency
+	 * @return the key
+	 */
+	private static long pairKey(int hcrnc0, int hcrnc1) {
+		if (hcrnc0 > hcrnc1) {
+			return ((long) hcrnc1 << 32) | (hcrnc0 & 0xFFFFFFFFL);
+		}
+		return ((long) hcrnc0 << 32) | (hcrnc1 & 0xFFFFFFFFL);
+	}
+}
\ No newline at end of file
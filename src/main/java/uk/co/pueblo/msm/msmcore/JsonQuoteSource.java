@@ -0,0 +1,183 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * A quote source that reads JSON. The source is either an array of quote
+ * objects or a sequence of quote objects, such as newline-delimited JSON. Each
+ * quote object is flat, with string, number, boolean or null values. Null
+ * values are treated as missing values. Numeric strings are converted to
+ * numbers, except in msmquote internal columns, as in a CSV quote source.
+ */
+public class JsonQuoteSource extends QuoteSource {
+
+	// Instance variables
+	private final StringBuilder text = new StringBuilder();
+	private boolean started = false;
+	private boolean inArray = false;
+
+	/**
+	 * @param is the UTF-8 input stream to read JSON quote data from
+	 */
+	public JsonQuoteSource(InputStream is) {
+		super(is);
+	}
+
+	/**
+	 * @param path the UTF-8 JSON file to read quote data from
+	 * @throws IOException
+	 */
+	public JsonQuoteSource(Path path) throws IOException {
+		super(path);
+	}
+
+	@Override
+	public QuoteRow next() throws IOException {
+		int c = skipWhitespace();
+		if (!started) {
+			started = true;
+			if (c == '[') {
+				read();
+				inArray = true;
+				c = skipWhitespace();
+				if (c == ']') {
+					read();
+					return null;
+				}
+			}
+		} else if (inArray) {
+			if (c == ']') {
+				read();
+				return null;
+			}
+			expect(',');
+			c = skipWhitespace();
+		}
+		if (c == -1) {
+			if (inArray) {
+				throw malformed("unterminated array");
+			}
+			return null;
+		}
+
+		// Read quote object
+		expect('{');
+		row.clear();
+		if (skipWhitespace() == '}') {
+			read();
+			return row;
+		}
+		while (true) {
+			skipWhitespace();
+			expect('"');
+			String column = readString();
+			skipWhitespace();
+			expect(':');
+			int index = row.addColumn(column);
+			row.set(index, readValue(column));
+			c = skipWhitespace();
+			read();
+			if (c == '}') {
+				return row;
+			} else if (c != ',') {
+				throw malformed("expected ',' or '}'");
+			}
+		}
+	}
+
+	private Object readValue(String column) throws IOException {
+		int c = skipWhitespace();
+		if (c == '"') {
+			read();
+			return toValue(column, readString());
+		} else if (c == '{' || c == '[') {
+			throw malformed("nested value for " + column);
+		}
+		// Literal or number
+		text.setLength(0);
+		while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+			text.append((char) read());
+		}
+		String literal = text.toString();
+		switch (literal) {
+		case "null":
+			return null;
+		case "true":
+			return Boolean.TRUE;
+		case "false":
+			return Boolean.FALSE;
+		default:
+			if (!isNumeric(literal)) {
+				throw malformed("invalid value for " + column + ": " + literal);
+			}
+			if (column.charAt(0) == 'x') {
+				return literal;
+			}
+			return Double.parseDouble(literal);
+		}
+	}
+
+	private String readString() throws IOException {
+		text.setLength(0);
+		int c;
+		while ((c = read()) != '"') {
+			if (c == -1) {
+				throw malformed("unterminated string");
+			} else if (c == '\\') {
+				c = read();
+				switch (c) {
+				case 'b':
+					text.append('\b');
+					break;
+				case 'f':
+					text.append('\f');
+					break;
+				case 'n':
+					text.append('\n');
+					break;
+				case 'r':
+					text.append('\r');
+					break;
+				case 't':
+					text.append('\t');
+					break;
+				case 'u':
+					int code = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(read(), 16);
+						if (digit < 0) {
+							throw malformed("invalid unicode escape");
+						}
+						code = (code << 4) + digit;
+					}
+					text.append((char) code);
+					break;
+				case -1:
+					throw malformed("unterminated string");
+				default:
+					text.append((char) c);
+				}
+			} else {
+				text.append((char) c);
+			}
+		}
+		return text.toString();
+	}
+
+	private int skipWhitespace() throws IOException {
+		int c;
+		while ((c = peek()) != -1 && Character.isWhitespace(c)) {
+			read();
+		}
+		return c;
+	}
+
+	private void expect(char expected) throws IOException {
+		if (read() != expected) {
+			throw malformed("expected '" + expected + "'");
+		}
+		return;
+	}
+}
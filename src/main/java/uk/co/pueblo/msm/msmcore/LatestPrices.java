@@ -0,0 +1,176 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * The most recent price of each security in the SP table, held in arrays
+ * indexed by hsec. Where a security has more than one price on its most recent
+ * date, the last of them in the SP table is held. The snapshot is kept up to
+ * date as quotes are applied, including prices still in the SP table append
+ * list.
+ */
+public final class LatestPrices {
+
+	// Constants
+	private static final int NO_PRICE = Integer.MIN_VALUE;
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Instance variables
+	private int[] days = new int[INITIAL_CAPACITY];
+	private double[] prices = new double[INITIAL_CAPACITY];
+	private int[] srcs = new int[INITIAL_CAPACITY];
+	private int[] hsps = new int[INITIAL_CAPACITY];
+	private int count = 0;
+
+	LatestPrices() {
+		Arrays.fill(days, NO_PRICE);
+	}
+
+	/**
+	 * Records a price added to the SP table. The price becomes the most recent
+	 * price of the security unless the security already has a later one.
+	 *
+	 * @param hsec  the hsec of the security
+	 * @param day   the date of the price as an epoch day
+	 * @param price the price, or NaN if none
+	 * @param src   the price source
+	 * @param hsp   the hsp of the SP table row
+	 */
+	void add(int hsec, int day, double price, int src, int hsp) {
+		if (hsec < 0) {
+			return;
+		}
+		ensureCapacity(hsec);
+		if (days[hsec] == NO_PRICE) {
+			count++;
+		} else if (day < days[hsec]) {
+			return;
+		}
+		set(hsec, day, price, src, hsp);
+		return;
+	}
+
+	/**
+	 * Records an update to a price already in the SP table. The snapshot changes
+	 * only if the updated row holds the most recent price of the security.
+	 *
+	 * @param hsec  the hsec of the security
+	 * @param price the new price, or NaN if none
+	 * @param src   the new price source
+	 * @param hsp   the hsp of the SP table row
+	 */
+	void update(int hsec, double price, int src, int hsp) {
+		if (contains(hsec) && hsps[hsec] == hsp) {
+			prices[hsec] = price;
+			srcs[hsec] = src;
+		}
+		return;
+	}
+
+	private void set(int hsec, int day, double price, int src, int hsp) {
+		days[hsec] = day;
+		prices[hsec] = price;
+		srcs[hsec] = src;
+		hsps[hsec] = hsp;
+		return;
+	}
+
+	private void ensureCapacity(int hsec) {
+		if (hsec >= days.length) {
+			int capacity = Math.max(days.length * 2, hsec + 1);
+			int oldCapacity = days.length;
+			days = Arrays.copyOf(days, capacity);
+			Arrays.fill(days, oldCapacity, capacity, NO_PRICE);
+			prices = Arrays.copyOf(prices, capacity);
+			srcs = Arrays.copyOf(srcs, capacity);
+			hsps = Arrays.copyOf(hsps, capacity);
+		}
+		return;
+	}
+
+	/**
+	 * Gets the number of securities with a price.
+	 *
+	 * @return the number of securities
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Gets the hsecs of the securities with a price, in ascending order.
+	 *
+	 * @return the hsecs
+	 */
+	public int[] getHsecs() {
+		int[] hsecs = new int[count];
+		int n = 0;
+		for (int hsec = 0; hsec < days.length && n < count; hsec++) {
+			if (days[hsec] != NO_PRICE) {
+				hsecs[n++] = hsec;
+			}
+		}
+		return hsecs;
+	}
+
+	/**
+	 * Checks whether a security has a price.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return true if the security has a price, otherwise false
+	 */
+	public boolean contains(int hsec) {
+		return hsec >= 0 && hsec < days.length && days[hsec] != NO_PRICE;
+	}
+
+	/**
+	 * Gets the date of the most recent price of a security as an epoch day.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the date, or {@link Integer#MIN_VALUE} if the security has no price
+	 */
+	public int getDay(int hsec) {
+		return contains(hsec) ? days[hsec] : NO_PRICE;
+	}
+
+	/**
+	 * Gets the date of the most recent price of a security.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the date, or null if the security has no price
+	 */
+	public LocalDate getDate(int hsec) {
+		return contains(hsec) ? LocalDate.ofEpochDay(days[hsec]) : null;
+	}
+
+	/**
+	 * Gets the most recent price of a security.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the price, or NaN if the security has no price
+	 */
+	public double getPrice(int hsec) {
+		return contains(hsec) ? prices[hsec] : Double.NaN;
+	}
+
+	/**
+	 * Gets the source of the most recent price of a security.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the price source, or -1 if the security has no price
+	 */
+	public int getSrc(int hsec) {
+		return contains(hsec) ? srcs[hsec] : -1;
+	}
+
+	/**
+	 * Gets the hsp of the most recent price of a security.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the hsp, or -1 if the security has no price
+	 */
+	public int getHsp(int hsec) {
+		return contains(hsec) ? hsps[hsec] : -1;
+	}
+}
\ No newline at end of file
@@ -1,55 +1,84 @@
 package uk.co.pueblo.msm.msmcore;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDate;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Cursor;
 import com.healthmarketscience.jackcess.CursorBuilder;
-import com.healthmarketscience.jackcess.Database;
 import com.healthmarketscience.jackcess.IndexCursor;
 import com.healthmarketscience.jackcess.Row;
 import com.healthmarketscience.jackcess.Table;
 import com.healthmarketscience.jackcess.util.IterableBuilder;
 
+import uk.co.pueblo.msm.msmcore.MsmEvents.CurrencyUpdateEvent;
+import uk.co.pueblo.msm.msmcore.MsmMetrics.Counter;
+import uk.co.pueblo.msm.msmcore.MsmMetrics.Phase;
+
 public class MsmCurrency extends MsmInstrument {
 
 	// Constants
 	static final Logger LOGGER = LogManager.getLogger(MsmCurrency.class);
 	private static final String CRNC_TABLE = "CRNC";
 	private static final String FX_TABLE = "CRNC_EXCHG";
-	private static final Properties PROPS;
+	private static final List<String> CRNC_COLS = List.of("hcrnc", "szIsoCode");
+	private static final QuoteSchema SCHEMA;
 
-	// Instance variables
-	private final Table crncTable;
-	private final Table fxTable;
+	// Instance variables, set when the tables are loaded
+	private final Map<String, Integer> hcrncs = new HashMap<>();
+	private FxMatrix fxMatrix = null;
+	private Cursor fxCursor;
+	private QuoteColumnMap fxColumns;
+	private Object[] fxUpdate; // reused CRNC_EXCHG table update row
 
 	static {
-		Properties props = null;
+		QuoteSchema schema = null;
 		try {
-			props = loadProperties("MsmCurrency.properties");
+			schema = QuoteSchema.compile(loadProperties("MsmCurrency.properties"));
 		} catch (Exception e) {
 			LOGGER.debug("Exception occured!", e);
 			LOGGER.fatal("Failed to load properties: {}", e.getMessage());
 		}
-		PROPS = props;
+		SCHEMA = schema;
 	}	
 	
 	// Constructor
 	public MsmCurrency(MsmDb msmDb) throws IOException {
-
 		this.msmDb = msmDb;
-		Database db = msmDb.getDb();
+	}
+
+	void load() throws IOException {
+		synchronized (msmDb) {
+			if (fxMatrix != null) {
+				return;
+			}
+
+			// Load the currency ISO codes, keeping the first hcrnc for each code
+			Cursor crncCursor = CursorBuilder.createCursor(msmDb.getTable(CRNC_TABLE).getPrimaryKeyIndex());
+			Row row;
+			while ((row = crncCursor.getNextRow(CRNC_COLS)) != null) {
+				if (row.get("szIsoCode") != null) {
+					hcrncs.putIfAbsent(row.get("szIsoCode").toString(), (int) row.get("hcrnc"));
+				}
+			}
+			LOGGER.debug("Loaded CRNC table: currencies={}", hcrncs.size());
 
-		// Open the currency tables
-		crncTable = db.getTable(CRNC_TABLE);
-		fxTable = db.getTable(FX_TABLE);
+			// Load the exchange rates
+			Table fxTable = msmDb.getTable(FX_TABLE);
+			fxCursor = CursorBuilder.createCursor(fxTable);
+			fxColumns = new QuoteColumnMap(fxTable);
+			fxUpdate = fxColumns.newUpdateRow();
+			fxMatrix = FxMatrix.build(fxTable);
+		}
+		return;
 	}
 
 	/**
@@ -60,57 +89,277 @@ public class MsmCurrency extends MsmInstrument {
 	 * @throws MsmInstrumentException
 	 */
 	public void update(Map<String, Object> sourceRow) throws IOException, MsmInstrumentException {
-		
-		updateStatus = UpdateStatus.OK;
+		apply(build(sourceRow, quoteRecord));
+		return;
+	}
+
+	void buildMsmRow(Map<String, Object> sourceRow, QuoteRecord record) throws MsmInstrumentException {
+		buildMsmRow(sourceRow, SCHEMA, record);
+		return;
+	}
 
-		Map<String, Object> msmRow = new HashMap<>(buildMsmRow(sourceRow, PROPS)); // build MSM row
+	long getUpdateKey(QuoteRecord record) {
+		// CRNC_EXCHG table primary key order
+		String symbol = record.getSymbol();
+		if (symbol.length() >= 6) {
+			Integer hcrnc0 = hcrncs.get(symbol.substring(0, 3));
+			Integer hcrnc1 = hcrncs.get(symbol.substring(3, 6));
+			if (hcrnc0 != null && hcrnc1 != null) {
+				int position = fxMatrix.getPosition(hcrnc0, hcrnc1);
+				if (position < 0) {
+					position = fxMatrix.getPosition(hcrnc1, hcrnc0);
+				}
+				if (position >= 0) {
+					return position;
+				}
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	String getLaneKey(Map<String, Object> sourceRow) {
+		// Both directions of a currency pair update the same exchange rate
+		String symbol = super.getLaneKey(sourceRow);
+		if (symbol.length() >= 6) {
+			String crnc0 = symbol.substring(0, 3);
+			String crnc1 = symbol.substring(3, 6);
+			return crnc0.compareTo(crnc1) <= 0 ? crnc0 + crnc1 : crnc1 + crnc0;
+		}
+		return symbol;
+	}
+
+	/**
+	 * Updates the exchange rate for a currency pair with a validated quote
+	 * record.
+	 * 
+	 * @param record the quote record containing the currency quote data to
+	 *               update
+	 * @throws IOException
+	 * @throws MsmInstrumentException
+	 */
+	void applyMsmRow(QuoteRecord record) throws IOException, MsmInstrumentException {
+		CurrencyUpdateEvent event = new CurrencyUpdateEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		try {
+			updateCurrency(record, event);
+		} finally {
+			event.commit();
+			journal(record.getSymbol(), record.has(QuoteColumn.DATE) ? record.getDay() : UpdateJournal.NO_DAY, event.hcrncFrom, event.hcrncTo, event.oldRate, event.newRate, event.status, startTime);
+		}
+		return;
+	}
+
+	/**
+	 * Adds a record of a currency update to the journal, if there is one.
+	 * 
+	 * @param symbol    the quote symbol, or null if none
+	 * @param day       the quote date as an epoch day, or
+	 *                  {@link UpdateJournal#NO_DAY}
+	 * @param hcrncFrom the from hcrnc
+	 * @param hcrncTo   the to hcrnc
+	 * @param oldRate   the previous exchange rate
+	 * @param newRate   the new exchange rate
+	 * @param status    the update status, or null if the update failed
+	 * @param startTime the start time of the update, from
+	 *                  {@link System#nanoTime()}
+	 * @throws IOException
+	 */
+	private void journal(String symbol, int day, int hcrncFrom, int hcrncTo, double oldRate, double newRate, UpdateStatus status, long startTime) throws IOException {
+		if (journal != null) {
+			journal.write(UpdateJournal.CURRENCY, symbol, day, hcrncFrom, hcrncTo, oldRate, newRate, status, System.nanoTime() - startTime);
+		}
+		return;
+	}
 
-		String symbol = msmRow.get("xSymbol").toString();
-		LOGGER.info("Updating exchange rate for symbol {}", symbol);
+	private void updateCurrency(QuoteRecord record, CurrencyUpdateEvent event) throws IOException, MsmInstrumentException {
+		String symbol = record.getSymbol();
+		event.symbol = symbol;
+		LOGGER.log(quoteLogLevel, "Updating exchange rate for symbol {}", symbol);
 
 		// Get hcrncs of currency pair
+		long startTime = System.nanoTime();
 		int[] hcrnc = { 0, 0 };
 		hcrnc[0] = getHcrnc(symbol.substring(0, 3));
 		hcrnc[1] = getHcrnc(symbol.substring(3, 6));
 
 		// Update exchange rate
-		String quoteType = msmRow.get("xType").toString();
-		double newRate = (double) msmRow.get("rate");
-		Map<String, Object> fxRowPattern = new HashMap<>();
-		IndexCursor fxCursor = CursorBuilder.createCursor(fxTable.getPrimaryKeyIndex());
-		Map<String, Object> fxRow = null;
+		String quoteType = record.getType();
+		double newRate = record.getNumber(QuoteColumn.RATE);
 		double oldRate = 0;
 		int i;
 		for (i = 0; i < 2; i++) {
-			fxRowPattern.put("hcrncFrom", hcrnc[i]);
-			fxRowPattern.put("hcrncTo", hcrnc[(i + 1) % 2]);
-			if (fxCursor.findFirstRow(fxRowPattern)) {
-				fxRow = fxCursor.getCurrentRow();
-				oldRate = (double) fxRow.get("rate");
+			int hcrncFrom = hcrnc[i];
+			int hcrncTo = hcrnc[(i + 1) % 2];
+			if (fxMatrix.contains(hcrncFrom, hcrncTo)) {
+				oldRate = fxMatrix.getRate(hcrncFrom, hcrncTo);
 				if (i == 1) {
 					// Reversed rate
 					newRate = 1 / newRate;
-					msmRow.put("rate", newRate);
+					record.setNumber(QuoteColumn.RATE, newRate);
 				}
-				LOGGER.info("Found exchange rate: from hcrnc={}, to hcrnc={}", hcrnc[i], hcrnc[(i + 1) % 2]);
+				metrics.recordPhase(Phase.LOOKUP, startTime);
+				event.hcrncFrom = hcrncFrom;
+				event.hcrncTo = hcrncTo;
+				event.oldRate = oldRate;
+				event.newRate = newRate;
+				LOGGER.log(quoteLogLevel, "Found exchange rate: from hcrnc={}, to hcrnc={}", hcrnc[i], hcrnc[(i + 1) % 2]);
 				if (oldRate != newRate) {
-					// Merge quote row into FX row and write to FX table
-					fxRow.putAll(msmRow); // TODO Should fxRow be sanitised first?
-					fxCursor.updateCurrentRowFromMap(fxRow);
-					incSummary(quoteType, updateStatus);
-					LOGGER.info("Updated exchange rate: new rate={}, previous rate={}", newRate, oldRate);
+					// Write quote values to FX table
+					startTime = System.nanoTime();
+					if (!fxCursor.findRow(fxMatrix.getRowId(hcrncFrom, hcrncTo))) {
+						throw new IOException("Cannot find row in CRNC_EXCHG table: from hcrnc=" + hcrncFrom + ", to hcrnc=" + hcrncTo);
+					}
+					fxColumns.setRowValues(record, fxUpdate);
+					fxCursor.updateCurrentRow(fxUpdate);
+					QuoteColumnMap.clearUpdateRow(fxUpdate);
+					metrics.recordPhase(Phase.WRITE, startTime);
+					metrics.add(Counter.ROWS_WRITTEN, 1);
+					fxMatrix.setRate(hcrncFrom, hcrncTo, newRate);
+					incSummary(quoteType, updateStatus, event);
+					LOGGER.log(quoteLogLevel, "Updated exchange rate: new rate={}, previous rate={}", newRate, oldRate);
 					return;
 				} else {
-					incSummary(quoteType, UpdateStatus.NO_CHANGE);
-					LOGGER.info("Skipped update for symbol {}, rate has not changed: new rate={}, previous rate={}", symbol, newRate, oldRate);
+					incSummary(quoteType, UpdateStatus.NO_CHANGE, event);
+					LOGGER.log(quoteLogLevel, "Skipped update for symbol {}, rate has not changed: new rate={}, previous rate={}", symbol, newRate, oldRate);
 					return;
 				}
 			}
 		}
-		incSummary(quoteType, UpdateStatus.NOT_FOUND);
+		metrics.recordPhase(Phase.LOOKUP, startTime);
+		incSummary(quoteType, UpdateStatus.NOT_FOUND, event);
 		throw new MsmInstrumentException("Cannot find previous exchange rate for symbol " + symbol);
 	}	
 
+	/**
+	 * Updates the exchange rates of all currency pairs in the CRNC_EXCHG table
+	 * that can be found by triangulation from a batch of currency quotes. The
+	 * quotes are typically from the base currency to each other currency, as
+	 * listed by {@link #getSymbols()}. A cross rate is written only if it has
+	 * changed, with the rows written in primary key order. Where there is more
+	 * than one quote for a currency pair the last is used. A quote that cannot be
+	 * validated, that has an unknown currency or whose rate is not a positive
+	 * finite number is counted and recorded in the result, and does not stop the
+	 * rest of the update.
+	 * 
+	 * @param sourceRows the rows containing the currency quote data
+	 * @return the result of the update, with one count for each currency pair in
+	 *         the CRNC_EXCHG table that was updated or found to be unchanged
+	 * @throws IOException
+	 */
+	public UpdateResult updateCrossRates(Iterable<? extends Map<String, Object>> sourceRows) throws IOException {
+		return updateCrossRates(sourceRows.iterator());
+	}
+
+	/**
+	 * Updates the exchange rates of all currency pairs in the CRNC_EXCHG table
+	 * that can be found by triangulation from the quotes in a quote source.
+	 * 
+	 * @param source the source of the rows containing the currency quote data
+	 * @return the result of the update
+	 * @throws IOException
+	 * @see #updateCrossRates(Iterable)
+	 */
+	public UpdateResult updateCrossRates(QuoteSource source) throws IOException {
+		try {
+			return updateCrossRates(source.iterator());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private UpdateResult updateCrossRates(Iterator<? extends Map<String, Object>> sourceRows) throws IOException {
+		synchronized (msmDb) {
+			msmDb.checkWritable();
+			load();
+			result = new UpdateResult();
+			try {
+				// Add quotes to rate graph
+				FxRateGraph graph = new FxRateGraph(msmDb.getDhdInt("hcrncDef"));
+				String quoteType = null;
+				long quoteDay = Long.MIN_VALUE;
+				while (sourceRows.hasNext()) {
+					QuoteRecord record;
+					try {
+						record = build(sourceRows.next(), quoteRecord);
+					} catch (MsmInstrumentException e) {
+						result.addError(e.getMessage());
+						continue;
+					}
+					String symbol = record.getSymbol();
+					quoteType = record.getType();
+					Integer hcrncFrom = symbol.length() < 6 ? null : hcrncs.get(symbol.substring(0, 3));
+					Integer hcrncTo = symbol.length() < 6 ? null : hcrncs.get(symbol.substring(3, 6));
+					if (hcrncFrom == null || hcrncTo == null) {
+						incSummary(quoteType, UpdateStatus.NOT_FOUND);
+						result.addError("Cannot find currencies for symbol " + symbol);
+						continue;
+					}
+					double rate = record.getNumber(QuoteColumn.RATE);
+					if (!(rate > 0) || Double.isInfinite(rate)) {
+						incSummary(quoteType, UpdateStatus.INVALID_REQUIRED);
+						result.addError("Invalid required quote data for symbol " + symbol + ": " + QuoteColumn.RATE.columnName + "=" + rate);
+						continue;
+					}
+					graph.addQuote(hcrncFrom, hcrncTo, rate);
+					if (record.has(QuoteColumn.DATE) && record.getDay() > quoteDay) {
+						quoteDay = record.getDay();
+					}
+				}
+
+				// Write changed cross rates in primary key order
+				Column rateCol = fxColumns.get(QuoteColumn.RATE);
+				Column dtCol = fxColumns.get(QuoteColumn.DATE);
+				Object quoteTime = quoteDay == Long.MIN_VALUE ? Column.KEEP_VALUE : LocalDate.ofEpochDay(quoteDay).atStartOfDay();
+				int journalDay = quoteDay == Long.MIN_VALUE ? UpdateJournal.NO_DAY : (int) quoteDay;
+				for (int position = 0; position < fxMatrix.getRowCount(); position++) {
+					int hcrncFrom = fxMatrix.getHcrncFrom(position);
+					int hcrncTo = fxMatrix.getHcrncTo(position);
+					if (fxMatrix.getPosition(hcrncFrom, hcrncTo) != position) {
+						continue; // duplicate row for currency pair
+					}
+					double newRate = graph.getRate(hcrncFrom, hcrncTo);
+					if (Double.isNaN(newRate)) {
+						continue;
+					}
+					double oldRate = fxMatrix.getRate(hcrncFrom, hcrncTo);
+					long writeTime = System.nanoTime();
+					if (newRate == oldRate) {
+						incSummary(quoteType, UpdateStatus.NO_CHANGE);
+						journal(null, journalDay, hcrncFrom, hcrncTo, oldRate, newRate, UpdateStatus.NO_CHANGE, writeTime);
+						continue;
+					}
+					CurrencyUpdateEvent event = new CurrencyUpdateEvent();
+					event.begin();
+					event.hcrncFrom = hcrncFrom;
+					event.hcrncTo = hcrncTo;
+					event.oldRate = oldRate;
+					event.newRate = newRate;
+					if (!fxCursor.findRow(fxMatrix.getRowId(hcrncFrom, hcrncTo))) {
+						throw new IOException("Cannot find row in CRNC_EXCHG table: from hcrnc=" + hcrncFrom + ", to hcrnc=" + hcrncTo);
+					}
+					rateCol.setRowValue(fxUpdate, newRate);
+					if (dtCol != null) {
+						dtCol.setRowValue(fxUpdate, quoteTime);
+					}
+					fxCursor.updateCurrentRow(fxUpdate);
+					QuoteColumnMap.clearUpdateRow(fxUpdate);
+					metrics.recordPhase(Phase.WRITE, writeTime);
+					metrics.add(Counter.ROWS_WRITTEN, 1);
+					fxMatrix.setRate(hcrncFrom, hcrncTo, newRate);
+					incSummary(quoteType, UpdateStatus.OK, event);
+					event.commit();
+					journal(null, journalDay, hcrncFrom, hcrncTo, oldRate, newRate, UpdateStatus.OK, writeTime);
+					LOGGER.log(quoteLogLevel, "Updated cross rate: from hcrnc={}, to hcrnc={}, new rate={}, previous rate={}", hcrncFrom, hcrncTo, newRate, oldRate);
+				}
+				return result;
+			} finally {
+				result = null;
+			}
+		}
+	}
+
 	/**
 	 * Builds the list of currency-pair symbols.
 	 *
@@ -118,30 +367,32 @@ public class MsmCurrency extends MsmInstrument {
 	 * @throws IOException
 	 */
 	public List<String[]> getSymbols() throws IOException {
-		List<String[]> cpSymbols = new ArrayList<>();
-		int defHcrnc = msmDb.getDhdInt("hcrncDef");
-		Map<String, Object> row = null;
-		Map<String, Object> rowPattern = new HashMap<>();
-		Iterator<Row> crncIt;
-		String defIsoCode = null;
-		rowPattern.put("fOnline", true); // online update flag set
-		rowPattern.put("fHidden", false);
-		IndexCursor cursor = CursorBuilder.createCursor(crncTable.getPrimaryKeyIndex());
-		crncIt = new IterableBuilder(cursor).setMatchPattern(rowPattern).forward().iterator();
-		List<String> isoCodes = new ArrayList<>();
-		while (crncIt.hasNext()) {
-			row = crncIt.next();
-			if ((int) row.get("hcrnc") == defHcrnc) {
-				defIsoCode = (String) row.get("szIsoCode");
-				LOGGER.info("Base currency is {}, hcrnc={}", defIsoCode, defHcrnc);
-			} else {
-				isoCodes.add(row.get("szIsoCode").toString());
+		synchronized (msmDb) {
+			List<String[]> cpSymbols = new ArrayList<>();
+			int defHcrnc = msmDb.getDhdInt("hcrncDef");
+			Map<String, Object> row = null;
+			Map<String, Object> rowPattern = new HashMap<>();
+			Iterator<Row> crncIt;
+			String defIsoCode = null;
+			rowPattern.put("fOnline", true); // online update flag set
+			rowPattern.put("fHidden", false);
+			IndexCursor cursor = CursorBuilder.createCursor(msmDb.getTable(CRNC_TABLE).getPrimaryKeyIndex());
+			crncIt = new IterableBuilder(cursor).setMatchPattern(rowPattern).forward().iterator();
+			List<String> isoCodes = new ArrayList<>();
+			while (crncIt.hasNext()) {
+				row = crncIt.next();
+				if ((int) row.get("hcrnc") == defHcrnc) {
+					defIsoCode = (String) row.get("szIsoCode");
+					LOGGER.info("Base currency is {}, hcrnc={}", defIsoCode, defHcrnc);
+				} else {
+					isoCodes.add(row.get("szIsoCode").toString());
+				}
 			}
+			for (String isoCode : isoCodes) {
+				cpSymbols.add(new String[] { defIsoCode + isoCode, "XX" });
+			}
+			return cpSymbols;
 		}
-		for (String isoCode : isoCodes) {
-			cpSymbols.add(new String[] { defIsoCode + isoCode, "XX" });
-		}
-		return cpSymbols;
 	}
 
 	/**
@@ -149,15 +400,13 @@ public class MsmCurrency extends MsmInstrument {
 	 * 
 	 * @param isoCode the ISO code to be found
 	 * @return the corresponding hcrnc, or -1 if not found
-	 * @throws IOException
 	 */
-	int getHcrnc(String isoCode) throws IOException {
+	int getHcrnc(String isoCode) {
 		int hcrnc = -1;
-		IndexCursor cursor = CursorBuilder.createCursor(crncTable.getPrimaryKeyIndex());
-		boolean found = cursor.findFirstRow(Collections.singletonMap("szIsoCode", isoCode));
-		if (found) {
-			hcrnc = (int) cursor.getCurrentRowValue(crncTable.getColumn("hcrnc"));
-			LOGGER.info("Found currency {}, hcrnc={}", isoCode, hcrnc);
+		Integer found = hcrncs.get(isoCode);
+		if (found != null) {
+			hcrnc = found;
+			LOGGER.log(quoteLogLevel, "Found currency {}, hcrnc={}", isoCode, hcrnc);
 		} else {
 			LOGGER.warn("Cannot find currency {}", isoCode);
 		}
@@ -2,24 +2,44 @@ package uk.co.pueblo.msm.msmcore;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
-import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Cursor;
 import com.healthmarketscience.jackcess.CursorBuilder;
 import com.healthmarketscience.jackcess.Database;
 import com.healthmarketscience.jackcess.DatabaseBuilder;
 import com.healthmarketscience.jackcess.DateTimeType;
-import com.healthmarketscience.jackcess.IndexCursor;
 import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.RowId;
 import com.healthmarketscience.jackcess.Table;
 import com.healthmarketscience.jackcess.crypt.CryptCodecProvider;
+import com.healthmarketscience.jackcess.util.MemFileChannel;
 import com.healthmarketscience.jackcess.util.OleBlob;
 import com.healthmarketscience.jackcess.util.OleBlob.Builder;
 
+import uk.co.pueblo.msm.msmcore.MsmEvents.DbOpenEvent;
+import uk.co.pueblo.msm.msmcore.MsmEvents.DhdBlobWriteEvent;
+
 /**
  * A Microsoft Money database instance.
  * 
@@ -35,14 +55,35 @@ public class MsmDb {
 	private static final String DHD_TABLE = "DHD";
 	private static final String CLI_DAT_TABLE = "CLI_DAT";
 	private static final String CNTRY_TABLE = "CNTRY";
+	private static final List<String> CNTRY_COLS = List.of("hcntry", "szCode");
+	private static final List<String> CLI_DAT_COLS = List.of("idData", "rgbVal", "dtVal");
 
 	// Instance variables
+	private final File dbFile;
+	private File lockFile; // null if the Money file is open read-only or closed
+	private final MemFileChannel workingCopy; // in-memory copy of the Money file, if any
+	private final boolean readOnly;
 	private final Database db;
-	private final Table cliDatTable;
-	private final Table cntryTable;
-	private final Table dhdTable;
-	private final Row dhdRow;
-	private final byte[] dhdData;
+	private final Map<String, Table> tables = new HashMap<>();
+	private Map<Integer, String> cntryCodes = null;
+	private Row dhdRow = null;
+	private ByteBuffer dhdData = null; // little-endian view of the DHD data blob
+	private final EnumSet<DhdDataValue> dirtyDhdValues = EnumSet.noneOf(DhdDataValue.class);
+	private Map<CliDatValue, Row> cliDatRows = null;
+	private final Map<CliDatValue, Object> dirtyCliDatValues = new EnumMap<>(CliDatValue.class);
+
+	// Money file open modes
+	public enum OpenMode {
+		/** Read and write the Money file directly */
+		DIRECT,
+		/**
+		 * Load the Money file into memory, work on the copy and write it back to
+		 * the Money file when the file is closed
+		 */
+		WORKING_COPY,
+		/** Read the Money file without taking the lock file */
+		READ_ONLY
+	}
 
 	// CLI_DAT table rows
 	public enum CliDatValue {
@@ -75,24 +116,60 @@ public class MsmDb {
 	 * @throws SQLException
 	 */
 	public MsmDb(String fileName, String password) throws IOException, SQLException {
+		this(fileName, password, OpenMode.DIRECT);
+	}
+
+	/**
+	 * In {@link OpenMode#WORKING_COPY} mode the whole Money file is read into
+	 * memory and all updates are made to the copy. The copy is written back by
+	 * {@link #closeDb()} in one sequential write to a temporary file, which then
+	 * replaces the Money file with an atomic rename. The Money file is left
+	 * untouched if the file is not closed. On Windows the rename fails while any
+	 * other process or instance has the Money file open, including a
+	 * {@link OpenMode#READ_ONLY} instance, and {@link #closeDb()} then throws an
+	 * IOException that names the temporary file holding the updated copy.
+	 * <p>
+	 * In {@link OpenMode#READ_ONLY} mode the lock file is not created and the
+	 * Money file is opened read-only, so a read-only instance does not wait for
+	 * an update of the same file. On Windows an open read-only instance does
+	 * block the write-back of a {@link OpenMode#WORKING_COPY} update, so readers
+	 * should close the file before such an update is closed. Any number of
+	 * read-only instances may be open on a file at once, but an instance must
+	 * only be used by one thread at a time, so each reader thread opens its own
+	 * instance. A reader sees a consistent file while an update is in progress if
+	 * the update uses {@link OpenMode#WORKING_COPY} mode.
+	 * 
+	 * @param fileName the name of the Money file
+	 * @param password the password for the Money file
+	 * @param mode     the open mode
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public MsmDb(String fileName, String password, OpenMode mode) throws IOException, SQLException {
 
 		// Create lock file
-		final String lockFileName;
-		final int i = fileName.lastIndexOf('.');
-		if (i <= 0) {
-			lockFileName = fileName;
-		} else {
-			lockFileName = fileName.substring(0, i);
-		}
-		final File lockFile = new File(lockFileName + ".lrd");
-		LOGGER.info("Creating lock file: {}", lockFile.getAbsolutePath());
-		if (!lockFile.createNewFile()) {
-			throw new FileAlreadyExistsException("Lock file already exists");
+		readOnly = mode == OpenMode.READ_ONLY;
+		if (!readOnly) {
+			final String lockFileName;
+			final int i = fileName.lastIndexOf('.');
+			if (i <= 0) {
+				lockFileName = fileName;
+			} else {
+				lockFileName = fileName.substring(0, i);
+			}
+			final File newLockFile = new File(lockFileName + ".lrd");
+			LOGGER.info("Creating lock file: {}", newLockFile.getAbsolutePath());
+			if (!newLockFile.createNewFile()) {
+				throw new FileAlreadyExistsException("Lock file already exists");
+			}
+			newLockFile.deleteOnExit();
+			lockFile = newLockFile;
 		}
-		lockFile.deleteOnExit();
 
 		// Open Money database
-		final File dbFile = new File(fileName);
+		final DbOpenEvent event = new DbOpenEvent();
+		event.begin();
+		dbFile = new File(fileName);
 		final CryptCodecProvider cryptCp;
 
 		if (password.isEmpty()) {
@@ -101,20 +178,30 @@ public class MsmDb {
 			cryptCp = new CryptCodecProvider(password);
 		}
 		LOGGER.info("Opening Money file: {}", dbFile.getAbsolutePath());
-		db = new DatabaseBuilder(dbFile).setCodecProvider(cryptCp).open();
-		db.setDateTimeType(DateTimeType.LOCAL_DATE_TIME);
-
-		// Open the core tables
-		cliDatTable = db.getTable(CLI_DAT_TABLE);
-		cntryTable = db.getTable(CNTRY_TABLE);
-		dhdTable = db.getTable(DHD_TABLE);
-
-		// Get the DHD row and data blob
-		dhdRow = dhdTable.getNextRow();
-		OleBlob dhdBlob = dhdRow.getBlob("rgbNhdata");
-		dhdData = dhdBlob.getBytes(1, (int) dhdBlob.length());
-		dhdBlob.close();
+		final DatabaseBuilder dbBuilder = new DatabaseBuilder(dbFile).setCodecProvider(cryptCp).setReadOnly(readOnly);
+		try {
+			if (mode == OpenMode.WORKING_COPY) {
+				workingCopy = MemFileChannel.newChannel(dbFile, "rw");
+				dbBuilder.setChannel(workingCopy).setAutoSync(false);
+				LOGGER.info("Loaded Money file into memory: size={}", workingCopy.size());
+			} else {
+				workingCopy = null;
+			}
+			db = dbBuilder.open();
+			db.setDateTimeType(DateTimeType.LOCAL_DATE_TIME);
+		} catch (IOException | RuntimeException e) {
+			deleteLockFile();
+			throw e;
+		}
 
+		if (event.shouldCommit()) {
+			event.file = dbFile.getAbsolutePath();
+			event.fileSize = dbFile.length();
+			event.encrypted = !password.isEmpty();
+			event.workingCopy = workingCopy != null;
+			event.readOnly = readOnly;
+			event.commit();
+		}
 		return;
 	}
 
@@ -128,11 +215,198 @@ public class MsmDb {
 	}
 
 	/**
-	 * Closes the Jackcess database instance.
+	 * Gets a table, opening the table on first use.
+	 * 
+	 * @param name the name of the table
+	 * @return the table
+	 * @throws IOException
+	 */
+	public synchronized Table getTable(String name) throws IOException {
+		Table table = tables.get(name);
+		if (table == null) {
+			table = db.getTable(name);
+			if (table == null) {
+				throw new IOException("Cannot find table in Money file: " + name);
+			}
+			tables.put(name, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Starts opening tables and loading the DHD data blob and CNTRY table on a
+	 * background thread, so that they are ready by the time they are first used.
+	 * The Money file must not be used through the Jackcess database instance
+	 * until the returned future completes. The methods of this class, and those
+	 * of the instrument classes, hold the lock on this instance whenever they use
+	 * the Money file, so they wait for it.
+	 * 
+	 * @param tableNames the names of the tables to open
+	 * @return a future that completes when the tables are open
+	 */
+	public CompletableFuture<Void> prewarm(String... tableNames) {
+		return CompletableFuture.runAsync(() -> {
+			synchronized (this) {
+				try {
+					loadDhd();
+					loadCntryCodes();
+					for (String name : tableNames) {
+						getTable(name);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the DHD row and data blob on first use.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void loadDhd() throws IOException {
+		if (dhdData == null) {
+			dhdRow = getTable(DHD_TABLE).getNextRow();
+			try (OleBlob dhdBlob = dhdRow.getBlob("rgbNhdata")) {
+				dhdData = ByteBuffer.wrap(dhdBlob.getBytes(1, (int) dhdBlob.length())).order(ByteOrder.LITTLE_ENDIAN);
+			} catch (SQLException e) {
+				throw new IOException("Cannot read DHD data blob", e);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Loads the CLI_DAT table rows for the known CLI_DAT values on first use,
+	 * keeping the first row for each value.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void loadCliDat() throws IOException {
+		if (cliDatRows == null) {
+			Map<Integer, CliDatValue> names = new HashMap<>();
+			for (CliDatValue name : CliDatValue.values()) {
+				names.put(name.idData, name);
+			}
+			Map<CliDatValue, Row> rows = new EnumMap<>(CliDatValue.class);
+			Cursor cliDatCursor = CursorBuilder.createCursor(getTable(CLI_DAT_TABLE).getPrimaryKeyIndex());
+			Row row;
+			while ((row = cliDatCursor.getNextRow(CLI_DAT_COLS)) != null) {
+				CliDatValue name = names.get(row.get("idData"));
+				if (name != null) {
+					rows.putIfAbsent(name, row);
+				}
+			}
+			cliDatRows = rows;
+			LOGGER.debug("Loaded CLI_DAT table: values={}", cliDatRows.size());
+		}
+		return;
+	}
+
+	/**
+	 * Loads the country codes from the CNTRY table on first use.
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void loadCntryCodes() throws IOException {
+		if (cntryCodes == null) {
+			Map<Integer, String> codes = new HashMap<>();
+			Cursor cntryCursor = CursorBuilder.createCursor(getTable(CNTRY_TABLE));
+			Row row;
+			while ((row = cntryCursor.getNextRow(CNTRY_COLS)) != null) {
+				if (row.get("hcntry") != null) {
+					codes.putIfAbsent((int) row.get("hcntry"), (String) row.get("szCode"));
+				}
+			}
+			cntryCodes = codes;
+			LOGGER.debug("Loaded CNTRY table: countries={}", cntryCodes.size());
+		}
+		return;
+	}
+
+	/**
+	 * Checks whether the Money file is open read-only.
+	 * 
+	 * @return true if the Money file is open read-only, otherwise false
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	/**
+	 * Closes the Jackcess database instance, after writing any changed DHD and
+	 * CLI_DAT values. In working copy mode the copy is then written back to the
+	 * Money file. The database is closed, the working copy released and the lock
+	 * file deleted even if the values cannot be written, in which case the copy
+	 * is not written back.
+	 */
+	public synchronized void closeDb() throws IOException {
+		try {
+			try {
+				if (!readOnly) {
+					flushMetadata();
+				}
+			} finally {
+				LOGGER.info("Closing Money file: {}", db.getFile());
+				db.close();
+			}
+			if (workingCopy != null) {
+				writeBack();
+			}
+		} finally {
+			try {
+				if (workingCopy != null) {
+					workingCopy.close(); // release the copy if it was not written back
+				}
+			} finally {
+				deleteLockFile();
+			}
+		}
+		return;
+	}
+
+	/**
+	 * Deletes the lock file, if one was created, so that the Money file can be
+	 * opened again by this or another process.
 	 */
-	public void closeDb() throws IOException {
-		LOGGER.info("Closing Money file: {}", db.getFile());
-		db.close();
+	private void deleteLockFile() {
+		if (lockFile != null) {
+			if (!lockFile.delete()) {
+				LOGGER.warn("Cannot delete lock file: {}", lockFile.getAbsolutePath());
+			}
+			lockFile = null;
+		}
+		return;
+	}
+
+	/**
+	 * Writes the working copy to a temporary file in the same directory as the
+	 * Money file, then renames the temporary file to the Money file. The
+	 * temporary file is kept if the rename fails, so that the update is not lost.
+	 * 
+	 * @throws IOException
+	 */
+	private void writeBack() throws IOException {
+		final Path dbPath = dbFile.toPath().toAbsolutePath();
+		final Path tmpPath = dbPath.resolveSibling(dbPath.getFileName() + ".tmp");
+		LOGGER.info("Writing working copy to Money file: {}", dbPath);
+		try (workingCopy; FileChannel tmpChannel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			final long size = workingCopy.size();
+			long position = 0;
+			while (position < size) {
+				position += workingCopy.transferTo(position, size - position, tmpChannel);
+			}
+			tmpChannel.force(true);
+		} catch (IOException e) {
+			Files.deleteIfExists(tmpPath);
+			throw e;
+		}
+		try {
+			Files.move(tmpPath, dbPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new IOException("Cannot replace Money file " + dbPath + ", updated copy left in " + tmpPath, e);
+		}
 		return;
 	}
 
@@ -143,7 +417,8 @@ public class MsmDb {
 	 * @return the column value
 	 * @throws IOException
 	 */
-	public int getDhdInt(String dhdCol) throws IOException {
+	public synchronized int getDhdInt(String dhdCol) throws IOException {
+		loadDhd();
 		return (int) dhdRow.get(dhdCol);
 	}
 
@@ -152,69 +427,154 @@ public class MsmDb {
 	 * 
 	 * @param ddVal the ENUM of the value
 	 * @return the value
+	 * @throws IOException
 	 */
-	public int getDhdDataInt(DhdDataValue ddVal) {
-		int value = 0;
-		for (int i = ddVal.index + Integer.BYTES - 1; i >= ddVal.index; i--) {
-			value = (value << 8) + (dhdData[i] & 0xFF);
-		}
-		return value;
+	public synchronized int getDhdDataInt(DhdDataValue ddVal) throws IOException {
+		loadDhd();
+		return dhdData.getInt(ddVal.index);
 	}
 
 	/**
-	 * Sets an integer value in the DHD data blob.
+	 * Sets an integer value in the DHD data blob. The DHD data blob is written to
+	 * the DHD table by {@link #flushMetadata()} or {@link #closeDb()}, so setting
+	 * a number of values costs one DHD table update.
 	 * 
 	 * @param ddVal the ENUM of the value
 	 * @param value the value to be set
 	 * @return void
 	 * @throws IOException
 	 */
-	public void setDhdDataInt(DhdDataValue ddVal, int value) throws IOException {
-		for (int i = ddVal.index; i < ddVal.index + Integer.BYTES; i++) {
-			dhdData[i] = (byte) (value & 0xFF);
-			value >>= 8;
-		}
-
-		// Write DHD data blob to DHD table
-		OleBlob dhdBlob = Builder.fromInternalData(dhdData);
-		dhdRow.put("rgbNhdata", dhdBlob);
-		dhdTable.updateRow(dhdRow);
-		dhdBlob.close();
+	public synchronized void setDhdDataInt(DhdDataValue ddVal, int value) throws IOException {
+		checkWritable();
+		loadDhd();
+		dhdData.putInt(ddVal.index, value);
+		dirtyDhdValues.add(ddVal);
 		return;
 	}
 
 	/**
-	 * Updates a value in the CLI_DAT table.
+	 * Allocates a block of primary keys from a next primary key value in the DHD
+	 * data blob. The value is advanced past the block, and is written to the DHD
+	 * table by {@link #flushMetadata()} or {@link #closeDb()}.
+	 * 
+	 * @param ddVal the ENUM of the next primary key value
+	 * @param count the number of primary keys to allocate
+	 * @return the first primary key of the block
+	 * @throws IOException
+	 */
+	public synchronized int allocateDhdDataInt(DhdDataValue ddVal, int count) throws IOException {
+		int first = getDhdDataInt(ddVal);
+		setDhdDataInt(ddVal, first + count);
+		return first;
+	}
+
+	/**
+	 * Gets a value from the CLI_DAT table, which is loaded on first use.
+	 * 
+	 * @param name the name of the row
+	 * @return the value, or null if the row is not found
+	 * @throws IOException
+	 */
+	public synchronized Object getCliDatVal(CliDatValue name) throws IOException {
+		loadCliDat();
+		if (dirtyCliDatValues.containsKey(name)) {
+			return dirtyCliDatValues.get(name);
+		}
+		Row row = cliDatRows.get(name);
+		return row == null ? null : row.get(name.valCol);
+	}
+
+	/**
+	 * Updates a value in the CLI_DAT table. The value is written to the CLI_DAT
+	 * table by {@link #flushMetadata()} or {@link #closeDb()}.
 	 * 
 	 * @param name   the name of the row to be updated
 	 * @param newVal the new value
 	 * @return true if successful, otherwise false
 	 * @throws IOException
 	 */
-	public boolean updateCliDatVal(CliDatValue name, Object newVal) throws IOException {
-		IndexCursor cursor = CursorBuilder.createCursor(cliDatTable.getPrimaryKeyIndex());
-		boolean found = cursor.findFirstRow(Collections.singletonMap("idData", name.idData));
-		if (found) {
-			Column cliDatCol = cliDatTable.getColumn(name.valCol);
-			cursor.setCurrentRowValue(cliDatCol, newVal);
+	public synchronized boolean updateCliDatVal(CliDatValue name, Object newVal) throws IOException {
+		checkWritable();
+		loadCliDat();
+		if (cliDatRows.containsKey(name)) {
+			dirtyCliDatValues.put(name, newVal);
 			return true;
 		}
 		return false;
 	}
 
 	/**
-	 * Gets the two-character country code for a hcntry from the CNTRY table.
+	 * Writes the changed DHD data blob values with one DHD table update, and the
+	 * changed CLI_DAT values in one pass over the CLI_DAT table.
+	 * 
+	 * @return true if the DHD data blob was written, otherwise false
+	 * @throws IOException
+	 */
+	public synchronized boolean flushMetadata() throws IOException {
+		checkWritable();
+		if (!dirtyCliDatValues.isEmpty()) {
+			// Write CLI_DAT values to CLI_DAT table in table page order
+			Table cliDatTable = getTable(CLI_DAT_TABLE);
+			Map<RowId, CliDatValue> names = new TreeMap<>();
+			for (CliDatValue name : dirtyCliDatValues.keySet()) {
+				names.put(cliDatRows.get(name).getId(), name);
+			}
+			Cursor cursor = CursorBuilder.createCursor(cliDatTable);
+			for (Map.Entry<RowId, CliDatValue> entry : names.entrySet()) {
+				CliDatValue name = entry.getValue();
+				Object newVal = dirtyCliDatValues.get(name);
+				if (!cursor.findRow(entry.getKey())) {
+					throw new IOException("Cannot find row in CLI_DAT table: idData=" + name.idData);
+				}
+				cursor.setCurrentRowValue(cliDatTable.getColumn(name.valCol), newVal);
+				cliDatRows.get(name).put(name.valCol, newVal);
+			}
+			dirtyCliDatValues.clear();
+		}
+		if (dirtyDhdValues.isEmpty()) {
+			return false;
+		}
+
+		// Write DHD data blob to DHD table
+		DhdBlobWriteEvent event = new DhdBlobWriteEvent();
+		event.begin();
+		OleBlob dhdBlob = Builder.fromInternalData(dhdData.array());
+		dhdRow.put("rgbNhdata", dhdBlob);
+		getTable(DHD_TABLE).updateRow(dhdRow);
+		dhdBlob.close();
+		if (event.shouldCommit()) {
+			StringJoiner values = new StringJoiner(", ");
+			dirtyDhdValues.forEach(ddVal -> values.add(ddVal.name()));
+			event.value = values.toString();
+			event.size = dhdData.capacity();
+			event.commit();
+		}
+		dirtyDhdValues.clear();
+		return true;
+	}
+
+	/**
+	 * Checks that the Money file may be updated.
+	 * 
+	 * @throws IOException if the Money file is open read-only
+	 */
+	void checkWritable() throws IOException {
+		if (readOnly) {
+			throw new IOException("Money file is open read-only: " + dbFile.getAbsolutePath());
+		}
+		return;
+	}
+
+	/**
+	 * Gets the two-character country code for a hcntry from the CNTRY table,
+	 * which is loaded on first use.
 	 * 
 	 * @param hcntry the hcntry to find the country code for
 	 * @return the country code, or null if not found
 	 * @throws IOException
 	 */
-	public String getCntryCode(int hcntry) throws IOException {
-		IndexCursor cursor = CursorBuilder.createCursor(cntryTable.getPrimaryKeyIndex());
-		boolean found = cursor.findFirstRow(Collections.singletonMap("hcntry", hcntry));
-		if (found) {
-			return (String) cursor.getCurrentRowValue(cntryTable.getColumn("szCode"));
-		}
-		return null;
+	public synchronized String getCntryCode(int hcntry) throws IOException {
+		loadCntryCodes();
+		return cntryCodes.get(hcntry);
 	}
 }
\ No newline at end of file
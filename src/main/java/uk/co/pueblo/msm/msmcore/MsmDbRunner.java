@@ -0,0 +1,315 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import uk.co.pueblo.msm.msmcore.MsmDb.OpenMode;
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * Updates a number of Money files with the same quote data. The security and
+ * currency quote rows are built and validated once into shared quote records,
+ * which are then applied to each Money file on its own thread, with up to a
+ * given number of files updated at a time. Each file is opened with its own
+ * {@link MsmDb} instance and lock file, and a file that cannot be opened or
+ * updated, for example because its lock file already exists, is recorded in
+ * its result and does not stop the other files.
+ */
+public class MsmDbRunner {
+
+	// Constants
+	private static final Logger LOGGER = LogManager.getLogger(MsmDbRunner.class);
+
+	// Instance variables
+	private final List<QuoteRecord> securityRecords;
+	private final List<QuoteRecord> currencyRecords;
+	private final UpdateResult validationResult = new UpdateResult();
+	private OpenMode openMode = OpenMode.DIRECT;
+	private boolean writeBehind = false;
+	private boolean quoteLogging = true;
+
+	/**
+	 * Builds and validates the quote rows to be applied to each Money file. A row
+	 * that cannot be validated is recorded in the validation result.
+	 *
+	 * @param securityRows the rows containing the security quote data
+	 * @param currencyRows the rows containing the currency quote data
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public MsmDbRunner(Iterable<? extends Map<String, Object>> securityRows, Iterable<? extends Map<String, Object>> currencyRows) throws IOException, SQLException {
+		// The validating instruments do not use a Money file
+		securityRecords = new MsmSecurity(null).validateAll(securityRows.iterator(), validationResult);
+		currencyRecords = new MsmCurrency(null).validateAll(currencyRows.iterator(), validationResult);
+		LOGGER.info("Validated quote data: securities={}, currencies={}, errors={}", securityRecords.size(), currencyRecords.size(), validationResult.getErrors().size());
+	}
+
+	/**
+	 * Sets the mode in which the Money files are opened.
+	 *
+	 * @param openMode {@link OpenMode#DIRECT} or {@link OpenMode#WORKING_COPY}
+	 */
+	public void setOpenMode(OpenMode openMode) {
+		if (openMode == OpenMode.READ_ONLY) {
+			throw new IllegalArgumentException("Money files cannot be updated in read-only mode");
+		}
+		this.openMode = openMode;
+		return;
+	}
+
+	/**
+	 * Sets write-behind mode for the security updates of each Money file.
+	 *
+	 * @param writeBehind true to buffer row updates, false to write them
+	 *                    immediately
+	 * @see MsmSecurity#setWriteBehind(boolean)
+	 */
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+		return;
+	}
+
+	/**
+	 * Sets whether the progress of each quote update is logged at INFO level.
+	 *
+	 * @param quoteLogging true to log each quote update at INFO level, false to
+	 *                     log at DEBUG level
+	 * @see MsmInstrument#setQuoteLogging(boolean)
+	 */
+	public void setQuoteLogging(boolean quoteLogging) {
+		this.quoteLogging = quoteLogging;
+		return;
+	}
+
+	/**
+	 * Gets the result of validating the quote rows, with the rows that were not
+	 * applied to any Money file.
+	 *
+	 * @return the validation result
+	 */
+	public UpdateResult getValidationResult() {
+		return validationResult;
+	}
+
+	/**
+	 * Applies the validated quote data to each Money file, updating up to the
+	 * given number of files at a time.
+	 *
+	 * @param files       the names of the Money files, each mapped to its
+	 *                    password, or an empty string if none
+	 * @param parallelism the maximum number of files updated at a time
+	 * @return the result for each file, in the order supplied
+	 * @throws IOException if the update is interrupted
+	 */
+	public List<FileResult> run(Map<String, String> files, int parallelism) throws IOException {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		List<Callable<FileResult>> tasks = new ArrayList<>(files.size());
+		files.forEach((fileName, password) -> tasks.add(() -> update(fileName, password)));
+		AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(tasks.size(), 1)), r -> {
+			Thread thread = new Thread(r, "msmcore-db-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<FileResult> fileResults = new ArrayList<>(tasks.size());
+			for (Future<FileResult> future : executor.invokeAll(tasks)) {
+				fileResults.add(future.get());
+			}
+			return fileResults;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Money file updates interrupted");
+		} catch (ExecutionException e) {
+			// Each update catches its own failures, so only an error is left
+			Throwable cause = e.getCause();
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Updates one Money file with the validated quote data.
+	 *
+	 * @param fileName the name of the Money file
+	 * @param password the password for the Money file
+	 * @return the result for the file
+	 */
+	private FileResult update(String fileName, String password) {
+		FileResult fileResult = new FileResult(fileName);
+		MsmDb msmDb;
+		try {
+			msmDb = new MsmDb(fileName, password, openMode);
+		} catch (FileAlreadyExistsException e) {
+			LOGGER.warn("Skipped Money file {}, lock file already exists", fileName);
+			fileResult.failure = e;
+			return fileResult;
+		} catch (IOException | SQLException | RuntimeException e) {
+			LOGGER.debug("Exception occured!", e);
+			LOGGER.error("Cannot open Money file {}: {}", fileName, e.getMessage());
+			fileResult.failure = e;
+			return fileResult;
+		}
+		try {
+			if (!securityRecords.isEmpty()) {
+				MsmSecurity msmSecurity = new MsmSecurity(msmDb);
+				msmSecurity.setQuoteLogging(quoteLogging);
+				msmSecurity.setWriteBehind(writeBehind);
+				fileResult.securityResult = msmSecurity.applyAll(securityRecords);
+				msmSecurity.addNewRows();
+			}
+			if (!currencyRecords.isEmpty()) {
+				MsmCurrency msmCurrency = new MsmCurrency(msmDb);
+				msmCurrency.setQuoteLogging(quoteLogging);
+				fileResult.currencyResult = msmCurrency.applyAll(currencyRecords);
+			}
+		} catch (IOException | SQLException | RuntimeException e) {
+			LOGGER.debug("Exception occured!", e);
+			LOGGER.error("Cannot update Money file {}: {}", fileName, e.getMessage());
+			fileResult.failure = e;
+		} finally {
+			try {
+				msmDb.closeDb();
+			} catch (IOException e) {
+				LOGGER.error("Cannot close Money file {}: {}", fileName, e.getMessage());
+				if (fileResult.failure == null) {
+					fileResult.failure = e;
+				}
+			}
+		}
+		LOGGER.info("Updated Money file {}: updated={}/{}, final status={}", fileName, fileResult.getResult().getUpdated(), fileResult.getResult().getTotal(), fileResult.getFinalStatus());
+		return fileResult;
+	}
+
+	/**
+	 * Adds the validation result and the results of all of the Money files to a
+	 * single result.
+	 *
+	 * @param fileResults the results of the Money files
+	 * @return the aggregate result
+	 */
+	public UpdateResult aggregate(List<FileResult> fileResults) {
+		UpdateResult total = new UpdateResult();
+		total.add(validationResult);
+		for (FileResult fileResult : fileResults) {
+			total.add(fileResult.getResult());
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the highest exit code of the validation result and the results of the
+	 * Money files. A file that could not be opened or updated has the error exit
+	 * code.
+	 *
+	 * @param fileResults the results of the Money files
+	 * @return the exit code
+	 */
+	public int getExitCode(List<FileResult> fileResults) {
+		int exitCode = validationResult.getFinalStatus().exitCode;
+		for (FileResult fileResult : fileResults) {
+			exitCode = Math.max(exitCode, fileResult.getExitCode());
+		}
+		return exitCode;
+	}
+
+	/**
+	 * The result of updating one Money file.
+	 */
+	public static class FileResult {
+
+		// Instance variables
+		private final String fileName;
+		private UpdateResult securityResult = new UpdateResult();
+		private UpdateResult currencyResult = new UpdateResult();
+		private Exception failure = null;
+
+		private FileResult(String fileName) {
+			this.fileName = fileName;
+		}
+
+		public String getFileName() {
+			return fileName;
+		}
+
+		public UpdateResult getSecurityResult() {
+			return securityResult;
+		}
+
+		public UpdateResult getCurrencyResult() {
+			return currencyResult;
+		}
+
+		/**
+		 * Gets the combined result of the security and currency updates.
+		 *
+		 * @return the result
+		 */
+		public UpdateResult getResult() {
+			UpdateResult result = new UpdateResult();
+			result.add(securityResult);
+			result.add(currencyResult);
+			return result;
+		}
+
+		/**
+		 * Gets the exception that stopped the update of the Money file.
+		 *
+		 * @return the exception, or null if the update completed
+		 */
+		public Exception getFailure() {
+			return failure;
+		}
+
+		/**
+		 * Checks whether the Money file was skipped because its lock file already
+		 * exists.
+		 *
+		 * @return true if the Money file is locked, otherwise false
+		 */
+		public boolean isLocked() {
+			return failure instanceof FileAlreadyExistsException;
+		}
+
+		/**
+		 * Gets the update status with the highest exit code for the Money file.
+		 *
+		 * @return the final update status
+		 */
+		public UpdateStatus getFinalStatus() {
+			UpdateStatus securityStatus = securityResult.getFinalStatus();
+			UpdateStatus currencyStatus = currencyResult.getFinalStatus();
+			return currencyStatus.exitCode > securityStatus.exitCode ? currencyStatus : securityStatus;
+		}
+
+		/**
+		 * Gets the exit code for the Money file.
+		 *
+		 * @return the exit code of the final update status, or the error exit code
+		 *         if the update did not complete
+		 */
+		public int getExitCode() {
+			return failure == null ? getFinalStatus().exitCode : MsmInstrument.EXIT_ERROR;
+		}
+	}
+}
\ No newline at end of file
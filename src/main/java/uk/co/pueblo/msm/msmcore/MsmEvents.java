@@ -0,0 +1,154 @@
+package uk.co.pueblo.msm.msmcore;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * JDK Flight Recorder events for Money file operations. The events are
+ * disabled by default, including in the default and profile recordings, and
+ * must be enabled in a custom recording settings file. They cost little more
+ * than the allocation of the event when disabled.
+ */
+final class MsmEvents {
+
+	// Constants
+	private static final String CATEGORY = "msmcore";
+
+	private MsmEvents() {
+	}
+
+	/**
+	 * Base event for the update of an instrument from a quote row.
+	 */
+	@Category(CATEGORY)
+	@StackTrace(false)
+	abstract static class UpdateEvent extends Event {
+
+		@Label("Symbol")
+		String symbol;
+
+		@Label("Outcome")
+		@Description("The update status of the quote")
+		String outcome;
+
+		UpdateStatus status; // not recorded, for the update journal
+	}
+
+	@Name("msmcore.MsmSecurityUpdate")
+	@Enabled(false)
+	@Label("Security Update")
+	@Description("Update of the SEC and SP tables from a security quote")
+	static final class SecurityUpdateEvent extends UpdateEvent {
+
+		@Label("hsec")
+		int hsec = -1;
+
+		@Label("Rows Scanned")
+		@Description("The number of SP table rows examined for the quote date")
+		int rowsScanned;
+
+		@Label("hsp")
+		@Description("The hsp of the SP table row written")
+		int hsp = -1;
+
+		@Label("Previous Price")
+		@Description("The most recent price of the security before the update")
+		double oldPrice = Double.NaN;
+
+		@Label("New Price")
+		double newPrice = Double.NaN;
+	}
+
+	@Name("msmcore.MsmCurrencyUpdate")
+	@Enabled(false)
+	@Label("Currency Update")
+	@Description("Update of an exchange rate in the CRNC_EXCHG table from a currency quote")
+	static final class CurrencyUpdateEvent extends UpdateEvent {
+
+		@Label("From hcrnc")
+		int hcrncFrom;
+
+		@Label("To hcrnc")
+		int hcrncTo;
+
+		@Label("Previous Rate")
+		double oldRate = Double.NaN;
+
+		@Label("New Rate")
+		double newRate = Double.NaN;
+	}
+
+	@Name("msmcore.MsmSpAppendFlush")
+	@Enabled(false)
+	@Label("SP Append Flush")
+	@Description("Addition of the SP table append list to the SP table")
+	@Category(CATEGORY)
+	static final class SpAppendFlushEvent extends Event {
+
+		@Label("Row Count")
+		int rowCount;
+	}
+
+	@Name("msmcore.MsmSpCompact")
+	@Enabled(false)
+	@Label("SP Compact")
+	@Description("Thinning of the price history in the SP table")
+	@Category(CATEGORY)
+	static final class SpCompactEvent extends Event {
+
+		@Label("Row Count")
+		int rowCount;
+
+		@Label("Dry Run")
+		boolean dryRun;
+	}
+
+	@Name("msmcore.MsmDbOpen")
+	@Enabled(false)
+	@Label("Money File Open")
+	@Category(CATEGORY)
+	static final class DbOpenEvent extends Event {
+
+		@Label("File")
+		String file;
+
+		@Label("File Size")
+		@DataAmount
+		long fileSize;
+
+		@Label("Encrypted")
+		boolean encrypted;
+
+		@Label("Working Copy")
+		@Description("The Money file was loaded into memory")
+		boolean workingCopy;
+
+		@Label("Read Only")
+		boolean readOnly;
+	}
+
+	@Name("msmcore.DhdBlobWrite")
+	@Enabled(false)
+	@Label("DHD Blob Write")
+	@Description("Rewrite of the DHD data blob")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	static final class DhdBlobWriteEvent extends Event {
+
+		@Label("Values")
+		@Description("The DHD data values that were set")
+		String value;
+
+		@Label("Blob Size")
+		@DataAmount
+		int size;
+	}
+}
\ No newline at end of file
@@ -2,36 +2,47 @@ package uk.co.pueblo.msm.msmcore;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.time.Instant;
-import java.time.LocalDateTime;
+import java.io.UncheckedIOException;
 import java.time.ZoneId;
-import java.time.temporal.ChronoUnit;
-import java.util.EnumSet;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
 
+import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import uk.co.pueblo.msm.msmcore.MsmEvents.UpdateEvent;
+import uk.co.pueblo.msm.msmcore.MsmMetrics.Phase;
+
 public abstract class MsmInstrument {
 
 	// Constants
 	static final Logger LOGGER = LogManager.getLogger(MsmInstrument.class);
 	static final ZoneId SYS_ZONE_ID = ZoneId.systemDefault();
 	static final int MAX_SYMBOL_LEN = 12; // length of MSM symbol excluding country prefix
-	static final int DATE_LEN = 10; // length of YYYY-MM-DD
 	static final int EXIT_OK = 0;
 	static final int EXIT_WARN = 1;
 	static final int EXIT_ERROR = 2;
+	static final String UNKNOWN_TYPE = "UNKNOWN"; // summary quote type for quotes without a quote type
+	private static final String[] BAD_COLUMN_MSGS = { "Missing optional quote data", "Invalid optional quote data", "Applied optional quote data default values" };
 
 	// Instance variables
 	MsmDb msmDb;
-	Map<String, int[]> summary = new HashMap<>();
+	final MsmMetrics metrics = new MsmMetrics();
 	UpdateStatus updateStatus;
+	UpdateResult result; // result of the batch update in progress, if any
+	final QuoteRecord quoteRecord = new QuoteRecord(); // reused for quotes that are applied as they are built
+	UpdateJournal journal = null;
+	Level quoteLogLevel = Level.INFO; // level of the log messages for each quote
+	private final ValueConverter valueConverter = new ValueConverter(SYS_ZONE_ID);
 
 	// Quote update status
 	public enum UpdateStatus {
@@ -51,108 +62,508 @@ public abstract class MsmInstrument {
 	
 	abstract List<String[]> getSymbols() throws IOException;
 
-	Map<String, Object> buildMsmRow(Map<String, Object> inRow, Properties props) throws MsmInstrumentException {
+	/**
+	 * Opens the tables and builds the in-memory indexes used for quote updates,
+	 * if not already done. Loading is synchronized on the Money database
+	 * instance, so that only one thread at a time uses the Money file.
+	 * 
+	 * @throws IOException
+	 */
+	abstract void load() throws IOException;
 
-		LOGGER.debug("Build MSM row input: {}", inRow);
+	/**
+	 * Starts opening the tables and building the in-memory indexes used for quote
+	 * updates on a background thread, so that they are ready by the time the
+	 * first quote is applied. The Money file must not be used through the
+	 * Jackcess database instance until the returned future completes. The methods
+	 * of the instrument classes and {@link MsmDb} hold the lock on the
+	 * {@link MsmDb} instance whenever they use the Money file, so they wait for
+	 * it, and the symbols may be fetched to request quotes while the prewarm is
+	 * running.
+	 * 
+	 * @return a future that completes when the tables and indexes are loaded
+	 */
+	public CompletableFuture<Void> prewarm() {
+		return CompletableFuture.runAsync(() -> {
+			try {
+				load();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * Sets the journal to which a record of each quote update is added.
+	 * 
+	 * @param journal the journal, or null for no journal
+	 */
+	public void setJournal(UpdateJournal journal) {
+		this.journal = journal;
+		return;
+	}
+
+	/**
+	 * Sets whether the progress of each quote update is logged at INFO level.
+	 * When turned off, the messages are logged at DEBUG level, and warnings are
+	 * still logged. Turning off quote logging is recommended for large updates,
+	 * with a journal to record the outcome of each quote.
+	 * 
+	 * @param quoteLogging true to log each quote update at INFO level, false to
+	 *                     log at DEBUG level
+	 */
+	public void setQuoteLogging(boolean quoteLogging) {
+		quoteLogLevel = quoteLogging ? Level.INFO : Level.DEBUG;
+		return;
+	}
+
+	/**
+	 * Builds and validates a quote record from a quote row.
+	 * 
+	 * @param sourceRow the row containing the quote data
+	 * @param record    the quote record to fill
+	 * @throws MsmInstrumentException
+	 */
+	abstract void buildMsmRow(Map<String, Object> sourceRow, QuoteRecord record) throws MsmInstrumentException;
+
+	/**
+	 * Applies a validated quote record to the Money file.
+	 * 
+	 * @param record the quote record
+	 * @throws IOException
+	 * @throws MsmInstrumentException
+	 */
+	abstract void applyMsmRow(QuoteRecord record) throws IOException, MsmInstrumentException;
+
+	/**
+	 * Gets the key that orders a validated quote record for a batch update.
+	 * Records are applied in ascending key order, which follows the primary key
+	 * order of the table being updated.
+	 * 
+	 * @param record the quote record
+	 * @return the key
+	 */
+	abstract long getUpdateKey(QuoteRecord record);
+
+	/**
+	 * Builds and validates a new quote record from a quote row, recording the
+	 * time taken.
+	 * 
+	 * @param sourceRow the row containing the quote data
+	 * @return the validated quote record
+	 * @throws MsmInstrumentException
+	 */
+	final QuoteRecord build(Map<String, Object> sourceRow) throws MsmInstrumentException {
+		return build(sourceRow, new QuoteRecord());
+	}
+
+	/**
+	 * Builds and validates a quote record from a quote row into an existing
+	 * record, recording the time taken.
+	 * 
+	 * @param sourceRow the row containing the quote data
+	 * @param record    the quote record to fill
+	 * @return the validated quote record
+	 * @throws MsmInstrumentException
+	 */
+	final QuoteRecord build(Map<String, Object> sourceRow, QuoteRecord record) throws MsmInstrumentException {
+		long startTime = System.nanoTime();
+		try {
+			buildMsmRow(sourceRow, record);
+			return record;
+		} finally {
+			metrics.recordPhase(Phase.BUILD, startTime);
+		}
+	}
+
+	/**
+	 * Applies a validated quote record to the Money file.
+	 * 
+	 * @param record the validated quote record
+	 * @throws IOException if the Money file is open read-only or cannot be
+	 *                     updated
+	 * @throws MsmInstrumentException
+	 */
+	void apply(QuoteRecord record) throws IOException, MsmInstrumentException {
+		synchronized (msmDb) {
+			msmDb.checkWritable();
+			load();
+			updateStatus = record.updateStatus;
+			applyMsmRow(record);
+		}
+		return;
+	}
 
-		Map<String, Object> msmRow = new HashMap<>();
-		String prop;
-		Object msmValue;
-		String columnSet = "column.";
-		int index = 1;
-
-		// Add required values to row
-		while ((prop = props.getProperty(columnSet + index++)) != null) {
-			if (!inRow.containsKey(prop)) {
-				// TODO xType or xSymbol might be null
-				incSummary(inRow.get("xType").toString(), UpdateStatus.MISSING_REQUIRED);
-				throw new MsmInstrumentException("Missing required quote data for symbol " + inRow.get("xSymbol") + ": " + prop);
+	/**
+	 * Gets the key that assigns a quote row to a pipeline lane. Quote rows with
+	 * the same key are applied in the order they are read.
+	 * 
+	 * @param sourceRow the row containing the quote data
+	 * @return the key
+	 */
+	String getLaneKey(Map<String, Object> sourceRow) {
+		Object symbol = sourceRow.get("xSymbol");
+		return symbol == null ? "" : normaliseSymbol(symbol.toString());
+	}
+
+	/**
+	 * Updates the Money file with a batch of quote rows. All of the rows are
+	 * validated first. The valid rows are then grouped and applied in primary key
+	 * order, with rows for the same key applied in the order supplied. A row that
+	 * cannot be validated or applied is counted and recorded in the result, and
+	 * does not stop the rest of the batch.
+	 * 
+	 * @param sourceRows the rows containing the quote data to update
+	 * @return the result of the batch update
+	 * @throws IOException
+	 */
+	public UpdateResult updateAll(Iterable<? extends Map<String, Object>> sourceRows) throws IOException {
+		return updateAll(sourceRows.iterator());
+	}
+
+	/**
+	 * Updates the Money file with a stream of quote rows.
+	 * 
+	 * @param sourceRows the rows containing the quote data to update
+	 * @return the result of the batch update
+	 * @throws IOException
+	 * @see #updateAll(Iterable)
+	 */
+	public UpdateResult updateAll(Stream<? extends Map<String, Object>> sourceRows) throws IOException {
+		return updateAll(sourceRows.iterator());
+	}
+
+	/**
+	 * Updates the Money file with each quote row from a quote source in turn. The
+	 * rows are applied in the order they are read, without being retained, and
+	 * are built into a single reused quote record, so a source of any size is
+	 * applied in constant memory. A row that cannot be
+	 * validated or applied is counted and recorded in the result, and does not
+	 * stop the rest of the update.
+	 * 
+	 * @param source the source of the quote rows to update
+	 * @return the result of the update
+	 * @throws IOException
+	 */
+	public UpdateResult update(QuoteSource source) throws IOException {
+		result = new UpdateResult();
+		try {
+			QuoteRow sourceRow;
+			while ((sourceRow = source.next()) != null) {
+				try {
+					update(sourceRow);
+				} catch (MsmInstrumentException e) {
+					result.addError(e.getMessage());
+				}
 			}
-			Object inValue = inRow.get(prop);
-			if ((msmValue = createMsmColumnValue(prop, inValue)) == null) {
-				// TODO xType or xSymbol might be null
-				incSummary(inRow.get("xType").toString(), UpdateStatus.INVALID_REQUIRED);
-				throw new MsmInstrumentException("Invalid required quote data for symbol " + inRow.get("xSymbol") + ": " + prop + "=" + inValue);
-			} else {
-				msmRow.put(prop, msmValue);
+			return result;
+		} finally {
+			result = null;
+		}
+	}
+
+	/**
+	 * Updates the Money file with each quote row from a quote source, building
+	 * and validating the rows in parallel. The rows are read on one thread,
+	 * validated on a number of worker threads and applied on the calling thread,
+	 * which is the only thread that accesses the Money file. Rows for the same
+	 * symbol are applied in the order they are read. A row that cannot be
+	 * validated or applied is counted and recorded in the result, and does not
+	 * stop the rest of the update.
+	 * 
+	 * @param source        the source of the quote rows to update
+	 * @param threads       the number of validation threads
+	 * @param queueCapacity the number of rows that may wait at each stage before
+	 *                      the stage feeding it blocks
+	 * @return the result of the update
+	 * @throws IOException
+	 */
+	public UpdateResult update(QuoteSource source, int threads, int queueCapacity) throws IOException {
+		return update(source.iterator(), threads, queueCapacity);
+	}
+
+	/**
+	 * Updates the Money file with quote rows, building and validating the rows
+	 * in parallel.
+	 * 
+	 * @param sourceRows    the rows containing the quote data to update
+	 * @param threads       the number of validation threads
+	 * @param queueCapacity the number of rows that may wait at each stage before
+	 *                      the stage feeding it blocks
+	 * @return the result of the update
+	 * @throws IOException
+	 * @see #update(QuoteSource, int, int)
+	 */
+	public UpdateResult update(Iterable<? extends Map<String, Object>> sourceRows, int threads, int queueCapacity) throws IOException {
+		return update(sourceRows.iterator(), threads, queueCapacity);
+	}
+
+	private UpdateResult update(Iterator<? extends Map<String, Object>> sourceRows, int threads, int queueCapacity) throws IOException {
+		QuotePipeline pipeline = new QuotePipeline(this, threads, queueCapacity);
+		result = new UpdateResult();
+		try {
+			pipeline.run(sourceRows);
+			return result;
+		} finally {
+			result = null;
+		}
+	}
+
+	private UpdateResult updateAll(Iterator<? extends Map<String, Object>> sourceRows) throws IOException {
+		load();
+		result = new UpdateResult();
+		try {
+			applyInKeyOrder(buildAll(sourceRows), false);
+			return result;
+		} finally {
+			result = null;
+		}
+	}
+
+	/**
+	 * Builds and validates quote rows into new quote records without applying
+	 * them. The Money file is not used, so the records may be applied by other
+	 * instruments of the same class, including instruments for other Money files.
+	 * A row that cannot be validated is counted and recorded in the result.
+	 * 
+	 * @param sourceRows the rows containing the quote data
+	 * @param result     the result in which to record the rows that are not valid
+	 * @return the validated quote records, in the order supplied
+	 */
+	List<QuoteRecord> validateAll(Iterator<? extends Map<String, Object>> sourceRows, UpdateResult result) {
+		this.result = result;
+		try {
+			return buildAll(sourceRows);
+		} finally {
+			this.result = null;
+		}
+	}
+
+	/**
+	 * Updates the Money file with quote records validated by
+	 * {@link #validateAll(Iterator, UpdateResult)}. The records may be shared with
+	 * other threads, so each one is copied into this instrument's reused quote
+	 * record before it is applied and the shared records are never changed.
+	 * 
+	 * @param records the validated quote records
+	 * @return the result of the update
+	 * @throws IOException
+	 */
+	UpdateResult applyAll(List<QuoteRecord> records) throws IOException {
+		load();
+		result = new UpdateResult();
+		try {
+			applyInKeyOrder(records, true);
+			return result;
+		} finally {
+			result = null;
+		}
+	}
+
+	private List<QuoteRecord> buildAll(Iterator<? extends Map<String, Object>> sourceRows) {
+		List<QuoteRecord> records = new ArrayList<>();
+		while (sourceRows.hasNext()) {
+			Map<String, Object> sourceRow = sourceRows.next();
+			try {
+				records.add(build(sourceRow));
+			} catch (MsmInstrumentException e) {
+				result.addError(e.getMessage());
 			}
 		}
+		return records;
+	}
+
+	/**
+	 * Applies validated quote records grouped in key order, with records for the
+	 * same key applied in the order supplied.
+	 * 
+	 * @param records the validated quote records
+	 * @param copy    true to apply a copy of each record, leaving the records
+	 *                unchanged
+	 * @throws IOException
+	 */
+	private void applyInKeyOrder(List<QuoteRecord> records, boolean copy) throws IOException {
+		long[] updateKeys = new long[records.size()];
+		Integer[] order = new Integer[records.size()];
+		for (int i = 0; i < order.length; i++) {
+			updateKeys[i] = getUpdateKey(records.get(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingLong(i -> updateKeys[i])); // stable sort
+		for (int i : order) {
+			try {
+				if (copy) {
+					quoteRecord.copyFrom(records.get(i));
+					apply(quoteRecord);
+				} else {
+					apply(records.get(i));
+				}
+			} catch (MsmInstrumentException e) {
+				result.addError(e.getMessage());
+			}
+		}
+		return;
+	}
+
+	void buildMsmRow(Map<String, Object> inRow, QuoteSchema schema, QuoteRecord record) throws MsmInstrumentException {
+
+		LOGGER.debug("Build MSM row input: {}", inRow);
+		record.clear();
+
+		// Get columns for quote type
+		Object xType = inRow.get("xType");
+		if (xType == null) {
+			incSummary(UNKNOWN_TYPE, UpdateStatus.MISSING_REQUIRED);
+			throw new MsmInstrumentException("Missing required quote data for symbol " + inRow.get("xSymbol") + ": xType");
+		}
+		String quoteType = xType.toString();
+		QuoteSchema.QuoteType schemaType = schema.get(quoteType);
+		if (schemaType == null) {
+			incSummary(quoteType, UpdateStatus.INVALID_REQUIRED);
+			throw new MsmInstrumentException("Invalid required quote data for symbol " + inRow.get("xSymbol") + ": xType=" + quoteType);
+		}
 
-		// Add optional values to row
-		String quoteType = inRow.get("xType").toString();
-		columnSet = columnSet + quoteType + '.';
-		index = 1;
-		StringJoiner badColumns[] = { new StringJoiner(", "), new StringJoiner(", "), new StringJoiner(", ") }; // missing, invalid, defaults
-		while ((prop = props.getProperty(columnSet + index++)) != null) {
-			String propArray[] = prop.split(",");
-			if (!inRow.containsKey(propArray[0])) {
-				updateStatus = UpdateStatus.MISSING_OPTIONAL;
-				badColumns[0].add(propArray[0]);
-			} else if ((msmValue = createMsmColumnValue(propArray[0], inRow.get(propArray[0]))) == null) {
-				updateStatus = UpdateStatus.INVALID_OPTIONAL;
-				badColumns[1].add(propArray[0] + "=" + inRow.get(propArray[0]));
+		// Add values to record
+		UpdateStatus status = UpdateStatus.OK;
+		StringJoiner badColumns[] = null; // missing, invalid, defaults
+		for (QuoteSchema.Field field : schemaType.fields) {
+			Object inValue = inRow.get(field.name);
+			int bad;
+			if (inValue == null && !inRow.containsKey(field.name)) {
+				if (field.required) {
+					incSummary(quoteType, UpdateStatus.MISSING_REQUIRED);
+					throw new MsmInstrumentException("Missing required quote data for symbol " + inRow.get("xSymbol") + ": " + field.name);
+				}
+				status = UpdateStatus.MISSING_OPTIONAL;
+				bad = 0;
+			} else if (!setColumnValue(record, field.column, inValue)) {
+				if (field.required) {
+					incSummary(quoteType, UpdateStatus.INVALID_REQUIRED);
+					throw new MsmInstrumentException("Invalid required quote data for symbol " + inRow.get("xSymbol") + ": " + field.name + "=" + inValue);
+				}
+				status = UpdateStatus.INVALID_OPTIONAL;
+				bad = 1;
 			} else {
-				msmRow.put(propArray[0], msmValue);
 				continue;
 			}
-			// Add default value to row
-			if (propArray.length == 2) {
-				msmRow.put(propArray[0], propArray[1]);
-				badColumns[2].add(propArray[0] + "=" + propArray[1]);
+			if (badColumns == null) {
+				badColumns = new StringJoiner[] { new StringJoiner(", "), new StringJoiner(", "), new StringJoiner(", ") };
+			}
+			badColumns[bad].add(bad == 0 ? field.name : field.name + "=" + inValue);
+			// Add default value to record
+			if (field.hasDefault()) {
+				record.setNumber(field.column, field.defaultValue);
+				badColumns[2].add(field.name + "=" + field.defaultText);
 			}
 		}
 
 		// Emit log messages
-		String[] msgPrefix = { "Missing optional quote data", "Invalid optional quote data", "Applied optional quote data default values" };
-		for (int i = 0; i < msgPrefix.length; i++) {
-			String columns = badColumns[i].toString();
-			if (!columns.isEmpty()) {
-				LOGGER.warn("{} for symbol {}: {}", msgPrefix[i], inRow.get("xSymbol"), columns);
+		if (badColumns != null) {
+			for (int i = 0; i < BAD_COLUMN_MSGS.length; i++) {
+				String columns = badColumns[i].toString();
+				if (!columns.isEmpty()) {
+					LOGGER.warn("{} for symbol {}: {}", BAD_COLUMN_MSGS[i], inRow.get("xSymbol"), columns);
+				}
 			}
 		}
-		
-		LOGGER.debug("Build MSM row output: {}",msmRow);
-		return msmRow;
+
+		record.updateStatus = status;
+		LOGGER.debug("Build MSM row output: symbol={}, type={}, columns={}", record.getSymbol(), quoteType, Long.bitCount(record.getPresent()));
+		return;
 	}
 
-	static private Object createMsmColumnValue(String column, Object object) {
-		try {
-			if (object instanceof String) {
-				// String objects requiring processing
-				if (column.equals("dtLastUpdate")) {
-					// LocalDateTime value from UTC string
-					return Instant.parse(object.toString()).atZone(SYS_ZONE_ID).toLocalDateTime();
-				} else if (column.equals("dt") && object.toString().length() == DATE_LEN && object.toString().matches("\\d{4}\\-\\d{2}\\-\\d{2}")) {
-					// LocalDateTime value from CSV date-only string
-					return LocalDateTime.parse(object.toString() + "T00:00:00");
-				} else if (column.equals("dt")) {
-					// LocalDateTime value from UTC string and truncated to days
-					return Instant.parse(object.toString()).atZone(SYS_ZONE_ID).toLocalDateTime().truncatedTo(ChronoUnit.DAYS);
-				} else if (column.equals("xSymbol") && object.toString().length() > MAX_SYMBOL_LEN && !object.toString().matches("\\$?..:.+")) {
-					// If symbol does not have an MSM country prefix then truncate if required
-					String newSymbol = object.toString().substring(0, MAX_SYMBOL_LEN);
-					LOGGER.info("Truncated symbol {} to {}", object, newSymbol);
-					return newSymbol;
-				} else if (column.charAt(0) == 'x') {
-					// msmquote internal values
-					return object.toString();
-				}
-			} else {
-				// Non-string objects requiring processing
-				if (column.equals("dtLastUpdate")) {
-					// LocalDateTime value from epoch seconds
-					return Instant.ofEpochSecond(((Double) object).longValue()).atZone(SYS_ZONE_ID).toLocalDateTime();
-				} else if (column.equals("dt")) {
-					// LocalDateTime value from epoch seconds and truncated to days
-					return Instant.ofEpochSecond(((Double) object).longValue()).atZone(SYS_ZONE_ID).toLocalDateTime().truncatedTo(ChronoUnit.DAYS);
+	/**
+	 * Converts a quote value to the MSM value for its column and sets it in a
+	 * quote record.
+	 *
+	 * @param record the quote record
+	 * @param column the column
+	 * @param object the quote value
+	 * @return true if the value was set, or false if the quote value is not valid
+	 */
+	private boolean setColumnValue(QuoteRecord record, QuoteColumn column, Object object) {
+		long time;
+		if (object instanceof String) {
+			// String objects requiring processing
+			String text = (String) object;
+			switch (column.valueType) {
+			case TIMESTAMP:
+				// Local epoch seconds from UTC string
+				time = valueConverter.toLocalEpochSecond(text);
+				break;
+			case DATE:
+				// Epoch day from date-only string, or from UTC string
+				time = valueConverter.toEpochDay(text);
+				break;
+			case SYMBOL:
+				// If symbol does not have an MSM country prefix then truncate if required
+				String newSymbol = normaliseSymbol(text);
+				if (!newSymbol.equals(text)) {
+					LOGGER.info("Truncated symbol {} to {}", text, newSymbol);
 				}
+				record.setText(column, newSymbol);
+				return true;
+			case TEXT:
+				// msmquote internal values
+				record.setText(column, text);
+				return true;
+			default:
+				return false;
 			}
-			// Everything else
-			return (Double) object;
-		} catch (Exception e) {
-			// Do nothing
+		} else if (object instanceof Double) {
+			// Double objects requiring processing
+			double value = (Double) object;
+			switch (column.valueType) {
+			case TIMESTAMP:
+				// Local epoch seconds from epoch seconds
+				time = valueConverter.toLocalEpochSecond((long) value);
+				break;
+			case DATE:
+				// Epoch day from epoch seconds
+				time = valueConverter.toEpochDay((long) value);
+				break;
+			case NUMBER:
+				record.setNumber(column, value);
+				return true;
+			default:
+				// Everything else
+				record.setText(column, object.toString());
+				return true;
+			}
+		} else {
+			return false;
+		}
+		if (time == ValueConverter.INVALID) {
+			return false;
 		}
-		return null;
+		record.setTime(column, time);
+		return true;
+	}
+
+	/**
+	 * Normalises a symbol to the form held in the SEC table. A symbol that does
+	 * not have an MSM country prefix is truncated to the maximum MSM symbol length.
+	 * 
+	 * @param symbol the symbol to normalise
+	 * @return the normalised symbol
+	 */
+	static String normaliseSymbol(String symbol) {
+		if (symbol.length() > MAX_SYMBOL_LEN && !hasCountryPrefix(symbol)) {
+			return symbol.substring(0, MAX_SYMBOL_LEN);
+		}
+		return symbol;
+	}
+
+	/**
+	 * Checks whether a symbol has an MSM country prefix, i.e. matches
+	 * {@code \$?..:.+}.
+	 * 
+	 * @param symbol the symbol to check
+	 * @return true if the symbol has a country prefix, otherwise false
+	 */
+	static boolean hasCountryPrefix(String symbol) {
+		int len = symbol.length();
+		return (len > 3 && symbol.charAt(2) == ':') || (len > 4 && symbol.charAt(0) == '$' && symbol.charAt(3) == ':');
 	}
 
 	static Properties loadProperties(String propsFile) throws IOException {
@@ -163,27 +574,43 @@ public abstract class MsmInstrument {
 	}
 
 	void incSummary(String quoteType, UpdateStatus updateStatus) {
-		summary.putIfAbsent(quoteType, new int[UpdateStatus.values().length]);
-		int[] count = summary.get(quoteType);
-		count[updateStatus.ordinal()]++;
-		summary.put(quoteType, count);
+		metrics.recordStatus(quoteType, updateStatus);
+		if (result != null) {
+			result.inc(quoteType, updateStatus);
+		}
 		return;
 	}
 
+	void incSummary(String quoteType, UpdateStatus updateStatus, UpdateEvent event) {
+		event.outcome = updateStatus.name();
+		event.status = updateStatus;
+		incSummary(quoteType, updateStatus);
+		return;
+	}
+
+	/**
+	 * Gets the runtime metrics for the quote updates of this instrument.
+	 * 
+	 * @return the metrics
+	 */
+	public MsmMetrics getMetrics() {
+		return metrics;
+	}
+
 	public UpdateStatus printSummary() {
 		UpdateStatus finalStatus = UpdateStatus.OK;
 		int maxExitCode = UpdateStatus.OK.exitCode;
-		Set<UpdateStatus> updatedSet = EnumSet.of(UpdateStatus.OK, UpdateStatus.MISSING_OPTIONAL, UpdateStatus.INVALID_OPTIONAL, UpdateStatus.NEW_STALE);
-		for (Map.Entry<String, int[]> entry : summary.entrySet()) {
+		MsmMetrics.Snapshot snapshot = metrics.snapshot();
+		for (String quoteType : snapshot.getQuoteTypes()) {
 			StringJoiner msgSj = new StringJoiner(", ");
-			int total = 0;
-			int updated = 0;
-			int n = 0;
+			long total = 0;
+			long updated = 0;
+			long n = 0;
 			for (UpdateStatus updateStatus : UpdateStatus.values()) {
-				if ((n = entry.getValue()[updateStatus.ordinal()]) > 0) {
+				if ((n = snapshot.getStatusCount(quoteType, updateStatus)) > 0) {
 					msgSj.add(updateStatus.msg + n);
 					total += n;
-					if (updatedSet.contains(updateStatus)) {
+					if (UpdateResult.UPDATED_SET.contains(updateStatus)) {
 						updated += n;
 					}
 					if (updateStatus.exitCode > maxExitCode) {
@@ -192,7 +619,7 @@ public abstract class MsmInstrument {
 					}
 				}
 			}
-			LOGGER.info("Summary for quote type {}: updated={}/{} [{}]", entry.getKey(), updated, total, msgSj.toString());
+			LOGGER.info("Summary for quote type {}: updated={}/{} [{}]", quoteType, updated, total, msgSj.toString());
 		}
 		return finalStatus;
 	}
@@ -0,0 +1,323 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * Runtime metrics for the quote updates of an instrument: latency histograms
+ * for each phase of an update, counts of table rows scanned and written, and
+ * counts of quotes by quote type and update status. The metrics may be updated
+ * and read from any thread. Listeners are notified as each measurement is
+ * recorded, on the thread doing the update.
+ */
+public final class MsmMetrics {
+
+	// Constants
+	private static final int BUCKETS = 64; // latency buckets, by power of two nanoseconds
+
+	// Instance variables
+	private final Histogram[] histograms = new Histogram[Phase.values().length];
+	private final LongAdder[] counters = new LongAdder[Counter.values().length];
+	private final Map<String, LongAdder[]> statusCounts = new ConcurrentHashMap<>();
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	// Update phases
+	public enum Phase {
+		/** Building and validating the MSM row from the quote row */
+		BUILD,
+		/** Finding the SEC row or exchange rate to update */
+		LOOKUP,
+		/** Searching the price history for the quote date */
+		SCAN,
+		/** Writing a row to a table */
+		WRITE,
+		/** Writing the SP table append list or buffered row updates to the tables */
+		FLUSH
+	}
+
+	// Counters
+	public enum Counter {
+		/** Price history rows examined */
+		ROWS_SCANNED,
+		/** Table rows updated or added */
+		ROWS_WRITTEN,
+		/**
+		 * Rewrites of the DHD data blob before new rows are added to the SP table.
+		 * Rewrites by {@link MsmDb#closeDb()} or other calls to
+		 * {@link MsmDb#flushMetadata()} are not counted.
+		 */
+		DHD_WRITES,
+		/** Buffered row updates replaced by a later update to the same row */
+		ROWS_COALESCED,
+		/** Table rows deleted */
+		ROWS_DELETED
+	}
+
+	/**
+	 * A listener for metrics as they are recorded. Listeners are called on the
+	 * thread doing the update, so must be fast and thread-safe.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called when an update phase has completed.
+		 *
+		 * @param phase the phase
+		 * @param nanos the duration of the phase in nanoseconds
+		 */
+		default void phaseCompleted(Phase phase, long nanos) {
+		}
+
+		/**
+		 * Called when a counter is incremented.
+		 *
+		 * @param counter the counter
+		 * @param delta   the increment
+		 */
+		default void counterIncremented(Counter counter, long delta) {
+		}
+
+		/**
+		 * Called when a quote has been processed.
+		 *
+		 * @param quoteType    the quote type
+		 * @param updateStatus the update status of the quote
+		 */
+		default void quoteCompleted(String quoteType, UpdateStatus updateStatus) {
+		}
+	}
+
+	MsmMetrics() {
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Adds a listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+		return;
+	}
+
+	/**
+	 * Removes a listener.
+	 *
+	 * @param listener the listener
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+		return;
+	}
+
+	/**
+	 * Records the completion of an update phase.
+	 *
+	 * @param phase     the phase
+	 * @param startTime the {@link System#nanoTime()} at the start of the phase
+	 * @return the {@link System#nanoTime()} at the end of the phase
+	 */
+	long recordPhase(Phase phase, long startTime) {
+		long endTime = System.nanoTime();
+		long nanos = endTime - startTime;
+		histograms[phase.ordinal()].record(nanos);
+		for (Listener listener : listeners) {
+			listener.phaseCompleted(phase, nanos);
+		}
+		return endTime;
+	}
+
+	void add(Counter counter, long delta) {
+		counters[counter.ordinal()].add(delta);
+		for (Listener listener : listeners) {
+			listener.counterIncremented(counter, delta);
+		}
+		return;
+	}
+
+	void recordStatus(String quoteType, UpdateStatus updateStatus) {
+		statusCounts.computeIfAbsent(quoteType, k -> {
+			LongAdder[] counts = new LongAdder[UpdateStatus.values().length];
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] = new LongAdder();
+			}
+			return counts;
+		})[updateStatus.ordinal()].increment();
+		for (Listener listener : listeners) {
+			listener.quoteCompleted(quoteType, updateStatus);
+		}
+		return;
+	}
+
+	/**
+	 * Takes a snapshot of the metrics. Metrics recorded while the snapshot is
+	 * taken may or may not be included.
+	 *
+	 * @return the snapshot
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * A latency histogram with buckets by power of two nanoseconds.
+	 */
+	private static class Histogram {
+
+		// Instance variables
+		final LongAdder[] buckets = new LongAdder[BUCKETS];
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			nanos = Math.max(nanos, 0);
+			buckets[Math.max(0, BUCKETS - 1 - Long.numberOfLeadingZeros(nanos))].increment(); // bucket i holds 2^i to 2^(i+1)-1
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulate(nanos);
+			return;
+		}
+	}
+
+	/**
+	 * A point-in-time copy of the metrics.
+	 */
+	public static final class Snapshot {
+
+		// Instance variables
+		private final long[][] buckets = new long[Phase.values().length][BUCKETS];
+		private final long[] counts = new long[Phase.values().length];
+		private final long[] totalNanos = new long[Phase.values().length];
+		private final long[] maxNanos = new long[Phase.values().length];
+		private final Map<Counter, Long> counters = new EnumMap<>(Counter.class);
+		private final Map<String, long[]> statusCounts = new LinkedHashMap<>();
+
+		private Snapshot(MsmMetrics metrics) {
+			for (Phase phase : Phase.values()) {
+				Histogram histogram = metrics.histograms[phase.ordinal()];
+				for (int i = 0; i < BUCKETS; i++) {
+					buckets[phase.ordinal()][i] = histogram.buckets[i].sum();
+				}
+				counts[phase.ordinal()] = histogram.count.sum();
+				totalNanos[phase.ordinal()] = histogram.totalNanos.sum();
+				maxNanos[phase.ordinal()] = histogram.maxNanos.get();
+			}
+			for (Counter counter : Counter.values()) {
+				counters.put(counter, metrics.counters[counter.ordinal()].sum());
+			}
+			for (Map.Entry<String, LongAdder[]> entry : metrics.statusCounts.entrySet()) {
+				long[] counts = new long[UpdateStatus.values().length];
+				for (int i = 0; i < counts.length; i++) {
+					counts[i] = entry.getValue()[i].sum();
+				}
+				statusCounts.put(entry.getKey(), counts);
+			}
+		}
+
+		/**
+		 * Gets the number of times a phase has completed.
+		 *
+		 * @param phase the phase
+		 * @return the count
+		 */
+		public long getCount(Phase phase) {
+			return counts[phase.ordinal()];
+		}
+
+		/**
+		 * Gets the total duration of a phase.
+		 *
+		 * @param phase the phase
+		 * @return the total duration in nanoseconds
+		 */
+		public long getTotalNanos(Phase phase) {
+			return totalNanos[phase.ordinal()];
+		}
+
+		/**
+		 * Gets the longest duration of a phase.
+		 *
+		 * @param phase the phase
+		 * @return the longest duration in nanoseconds
+		 */
+		public long getMaxNanos(Phase phase) {
+			return maxNanos[phase.ordinal()];
+		}
+
+		/**
+		 * Gets an upper bound for a percentile of the durations of a phase. The
+		 * bound is within a factor of two of the actual percentile.
+		 *
+		 * @param phase      the phase
+		 * @param percentile the percentile, from 0 to 100
+		 * @return the upper bound in nanoseconds, or 0 if the phase has not completed
+		 */
+		public long getPercentileNanos(Phase phase, double percentile) {
+			long[] phaseBuckets = buckets[phase.ordinal()];
+			long total = counts[phase.ordinal()];
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += phaseBuckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min(i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1, maxNanos[phase.ordinal()]);
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * Gets the value of a counter.
+		 *
+		 * @param counter the counter
+		 * @return the value
+		 */
+		public long getCounter(Counter counter) {
+			return counters.get(counter);
+		}
+
+		/**
+		 * Gets the quote types that have been processed.
+		 *
+		 * @return the quote types
+		 */
+		public Set<String> getQuoteTypes() {
+			return Collections.unmodifiableSet(statusCounts.keySet());
+		}
+
+		/**
+		 * Gets the number of quotes of a quote type with an update status.
+		 *
+		 * @param quoteType    the quote type
+		 * @param updateStatus the update status
+		 * @return the number of quotes
+		 */
+		public long getStatusCount(String quoteType, UpdateStatus updateStatus) {
+			long[] counts = statusCounts.get(quoteType);
+			return counts == null ? 0 : counts[updateStatus.ordinal()];
+		}
+	}
+}
\ No newline at end of file
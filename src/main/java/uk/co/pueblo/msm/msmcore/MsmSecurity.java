@@ -1,29 +1,42 @@
 package uk.co.pueblo.msm.msmcore;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.SQLException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Cursor;
 import com.healthmarketscience.jackcess.CursorBuilder;
-import com.healthmarketscience.jackcess.Database;
 import com.healthmarketscience.jackcess.IndexCursor;
 import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.RowId;
 import com.healthmarketscience.jackcess.Table;
-import com.healthmarketscience.jackcess.util.IterableBuilder;
 
 import uk.co.pueblo.msm.msmcore.MsmDb.DhdDataValue;
+import uk.co.pueblo.msm.msmcore.MsmEvents.SecurityUpdateEvent;
+import uk.co.pueblo.msm.msmcore.MsmEvents.SpAppendFlushEvent;
+import uk.co.pueblo.msm.msmcore.MsmEvents.SpCompactEvent;
+import uk.co.pueblo.msm.msmcore.MsmMetrics.Counter;
+import uk.co.pueblo.msm.msmcore.MsmMetrics.Phase;
 
 public class MsmSecurity extends MsmInstrument {
 
@@ -33,38 +46,113 @@ public class MsmSecurity extends MsmInstrument {
 	private static final String SP_TABLE = "SP";
 	private static final int SRC_MANUAL = 5;
 	private static final int SRC_ONLINE = 6;
-	private static final Properties PROPS;
+	private static final QuoteSchema SCHEMA;
+	private static final long STALE_DAYS;
+	private static final List<String> SYMBOL_COLS = List.of("szSymbol", "hcntry", "mComment", "fOLQuotes");
+	private static final List<String> SP_KEY_COLS = List.of("hsp");
+	private static final Integer SRC_ONLINE_VALUE = SRC_ONLINE;
+	private static final int BACKFILL_BATCH_ROWS = 10000; // SP table append list rows added to the SP table at a time during a backfill
+	private static final int COMPACT_BATCH_ROWS = 10000; // SP table rows deleted at a time during a compaction
 
-	// Instance variables
-	private final Table secTable;
-	private final Table spTable;
-	private ArrayList<Map<String, Object>> newSpRows = new ArrayList<>();
-	private int hsp = 0;
+	// Instance variables, set when the tables are loaded
+	private Table spTable;
+	private SymbolIndex symbolIndex;
+	private Cursor secCursor;
+	private SpIndex spIndex = null;
+	private IndexCursor spCursor;
+	private RowChangeBuffer secChanges;
+	private RowChangeBuffer spChanges;
+	private QuoteColumnMap secColumns;
+	private QuoteColumnMap spColumns;
+	private Object[] secUpdate; // reused SEC table update row
+	private Object[] spUpdate; // reused SP table update row
+	private Column spHspCol;
+	private Column spHsecCol;
+	private Column spSrcCol;
+	private Column spSerialCol;
+	private boolean writeBehind = false;
+	private ArrayList<Object[]> newSpRows = new ArrayList<>();
+	private int firstNewHsp = 0; // hsp of first row in SP table append list
+	private int nextHsp = 0; // next unused hsp of the reserved block
+	private int hspLimit = 0; // end of the reserved block of hsps
 
 	static {
-		Properties props = null;
+		QuoteSchema schema = null;
+		long staleDays = 0;
 		try {
-			props = loadProperties("MsmSecurity.properties");
+			schema = QuoteSchema.compile(loadProperties("MsmSecurity.properties"));
+			staleDays = Long.parseLong(schema.getProperty("quote.staledays"));
 		} catch (Exception e) {
 			LOGGER.debug("Exception occured!", e);
 			LOGGER.fatal("Failed to load properties: {}", e.getMessage());
 		}
-		PROPS = props;
+		SCHEMA = schema;
+		STALE_DAYS = staleDays;
 	}	
 	
 	// Constructor
 	public MsmSecurity(MsmDb msmDb) throws IOException, SQLException {
-
 		this.msmDb = msmDb;
-		Database db = msmDb.getDb();
+	}
+
+	void load() throws IOException {
+		synchronized (msmDb) {
+			if (spIndex != null) {
+				return;
+			}
+
+			// Open the securities tables
+			Table secTable = msmDb.getTable(SEC_TABLE);
+			spTable = msmDb.getTable(SP_TABLE);
+
+			// Get the next hsp (SP table primary key)
+			firstNewHsp = msmDb.getDhdDataInt(DhdDataValue.SP_NEXT_PK);
+			LOGGER.debug("Next hsp={}", firstNewHsp);
+
+			// Build the SEC table symbol index
+			symbolIndex = SymbolIndex.build(secTable);
+			secCursor = CursorBuilder.createCursor(secTable);
 
-		// Open the securities tables
-		secTable = db.getTable(SEC_TABLE);
-		spTable = db.getTable(SP_TABLE);
+			// Create the write-behind change buffers
+			secChanges = new RowChangeBuffer(secTable);
+			spChanges = new RowChangeBuffer(spTable);
 
-		// Get the next hsp (SP table primary key)
-		hsp = msmDb.getDhdDataInt(DhdDataValue.SP_NEXT_PK);
-		LOGGER.debug("Next hsp={}", hsp);
+			// Find the columns written by quote updates
+			secColumns = new QuoteColumnMap(secTable);
+			spColumns = new QuoteColumnMap(spTable);
+			secUpdate = secColumns.newUpdateRow();
+			spUpdate = spColumns.newUpdateRow();
+			spHspCol = spTable.getColumn("hsp");
+			spHsecCol = spTable.getColumn("hsec");
+			spSrcCol = spTable.getColumn("src");
+			spSerialCol = spTable.getColumn("dtSerial");
+
+			// Build the SP table index
+			spCursor = CursorBuilder.createCursor(spTable.getPrimaryKeyIndex());
+			spIndex = SpIndex.build(spTable);
+		}
+		return;
+	}
+
+	/**
+	 * Sets write-behind mode. In write-behind mode, updates to existing SEC and
+	 * SP table rows are buffered instead of being written immediately. Repeated
+	 * updates to the same row are coalesced, and the buffered rows are written in
+	 * table page order by {@link #flushUpdates()} or {@link #addNewRows()}.
+	 * Turning write-behind mode off flushes any buffered updates.
+	 * 
+	 * @param writeBehind true to buffer row updates, false to write them
+	 *                    immediately
+	 * @throws IOException
+	 */
+	public void setWriteBehind(boolean writeBehind) throws IOException {
+		synchronized (msmDb) {
+			if (!writeBehind) {
+				flushUpdates();
+			}
+			this.writeBehind = writeBehind;
+		}
+		return;
 	}
 
 	/**
@@ -76,151 +164,740 @@ public class MsmSecurity extends MsmInstrument {
 	 * @throws MsmInstrumentException
 	 */
 	public void update(Map<String, Object> sourceRow) throws IOException, MsmInstrumentException {
-		
-		updateStatus = UpdateStatus.OK;
+		apply(build(sourceRow, quoteRecord));
+		return;
+	}
+
+	void buildMsmRow(Map<String, Object> sourceRow, QuoteRecord record) throws MsmInstrumentException {
+		buildMsmRow(sourceRow, SCHEMA, record);
+		return;
+	}
+
+	long getUpdateKey(QuoteRecord record) {
+		// SEC table primary key order
+		SymbolIndex.Entry secEntry = symbolIndex.get(record.getSymbol());
+		return secEntry == null ? Long.MAX_VALUE : secEntry.hsec;
+	}
+
+	/**
+	 * Updates the SEC and SP tables with a validated quote record.
+	 * 
+	 * @param record the quote record containing the quote data to update
+	 * @throws IOException
+	 * @throws MsmInstrumentException
+	 */
+	void applyMsmRow(QuoteRecord record) throws IOException, MsmInstrumentException {
+		SecurityUpdateEvent event = new SecurityUpdateEvent();
+		event.begin();
+		long startTime = System.nanoTime();
+		try {
+			updateSecurity(record, event);
+		} finally {
+			event.commit();
+			if (journal != null) {
+				journal.write(UpdateJournal.SECURITY, record.getSymbol(), record.getDay(), event.hsec, event.hsp, event.oldPrice, event.newPrice, event.status, System.nanoTime() - startTime);
+			}
+		}
+		return;
+	}
 
-		Map<String, Object> msmRow = new HashMap<>(buildMsmRow(sourceRow, PROPS)); // build MSM row
-		
-		String symbol = msmRow.get("xSymbol").toString();
-		String quoteType = msmRow.get("xType").toString();
-		LOGGER.info("Updating quote data for symbol {}, quote type={}", symbol, quoteType);
+	private void updateSecurity(QuoteRecord record, SecurityUpdateEvent event) throws IOException, MsmInstrumentException {
+		String symbol = record.getSymbol();
+		String quoteType = record.getType();
+		event.symbol = symbol;
+		LOGGER.log(quoteLogLevel, "Updating quote data for symbol {}, quote type={}", symbol, quoteType);
 
 		// Find symbol in SEC table
+		long startTime = System.nanoTime();
 		int hsec = -1;
-		Map<String, Object> secRow = null;
-		IndexCursor secCursor = CursorBuilder.createCursor(secTable.getPrimaryKeyIndex());
-		if (secCursor.findFirstRow(Collections.singletonMap("szSymbol", symbol))) {
-			secRow = secCursor.getCurrentRow();
-			hsec = (int) secRow.get("hsec");
-			LOGGER.info("Found symbol {} in SEC table: sct={}, hsec={}", symbol, secRow.get("sct"), hsec);
+		SymbolIndex.Entry secEntry = symbolIndex.get(symbol);
+		if (secEntry != null && secCursor.findRow(secEntry.rowId)) {
+			hsec = secEntry.hsec;
+			event.hsec = hsec;
+			event.oldPrice = spIndex.getLatestPrices().getPrice(hsec);
+			event.newPrice = record.getNumber(QuoteColumn.PRICE);
+			metrics.recordPhase(Phase.LOOKUP, startTime);
+			LOGGER.log(quoteLogLevel, "Found symbol {} in SEC table: hsec={}", symbol, hsec);
 		} else {
-			incSummary(quoteType, UpdateStatus.NOT_FOUND);
+			metrics.recordPhase(Phase.LOOKUP, startTime);
+			incSummary(quoteType, UpdateStatus.NOT_FOUND, event);
 			throw new MsmInstrumentException("Cannot find symbol " + symbol + " in SEC table");
 		}
 
 		// Update SEC table
 		LocalDateTime quoteTime;
 		long quoteAgeDays = 0;
-		if (msmRow.containsKey("dtLastUpdate")) {
-			quoteTime = (LocalDateTime) msmRow.get("dtLastUpdate");
-			if (!quoteTime.equals((LocalDateTime) secRow.get("dtLastUpdate"))) {
-				// Merge quote row into SEC row and write to SEC table
-				secRow.putAll(msmRow); // TODO Should secRow be sanitised first?
-				secCursor.updateCurrentRowFromMap(secRow);
-				LOGGER.info("Updated SEC table for symbol {}", symbol);
-			} else if ((quoteAgeDays = ChronoUnit.DAYS.between(quoteTime, LocalDateTime.now())) > Long.parseLong(PROPS.getProperty("quote.staledays"))) {
+		if (record.has(QuoteColumn.LAST_UPDATE)) {
+			quoteTime = QuoteRecord.toLocalDateTime(record.getLastUpdate());
+			Object secLastUpdate = getSecValue(secEntry.rowId, secColumns.get(QuoteColumn.LAST_UPDATE));
+			if (!(secLastUpdate instanceof LocalDateTime) || record.getLastUpdate() != QuoteRecord.toEpochSecond((LocalDateTime) secLastUpdate)) {
+				// Write quote values to SEC table
+				secColumns.setRowValues(record, secUpdate);
+				if (writeBehind) {
+					bufferUpdate(secChanges, secEntry.rowId, secUpdate);
+					LOGGER.log(quoteLogLevel, "Updated SEC table change buffer for symbol {}", symbol);
+				} else {
+					startTime = System.nanoTime();
+					secCursor.updateCurrentRow(secUpdate);
+					metrics.recordPhase(Phase.WRITE, startTime);
+					metrics.add(Counter.ROWS_WRITTEN, 1);
+					LOGGER.log(quoteLogLevel, "Updated SEC table for symbol {}", symbol);
+				}
+				QuoteColumnMap.clearUpdateRow(secUpdate);
+			} else if ((quoteAgeDays = ChronoUnit.DAYS.between(quoteTime, LocalDateTime.now())) > STALE_DAYS) {
 				// Quote data is stale
 				updateStatus = UpdateStatus.STALE;
 			} else {
 				// Skip update
-				incSummary(quoteType, UpdateStatus.NO_CHANGE);
-				LOGGER.info("Skipped update for symbol {}, new quote has same timestamp as previous quote: timestamp={}", symbol, quoteTime);
+				incSummary(quoteType, UpdateStatus.NO_CHANGE, event);
+				LOGGER.log(quoteLogLevel, "Skipped update for symbol {}, new quote has same timestamp as previous quote: timestamp={}", symbol, quoteTime);
 				return;
 			}
 		} else {
-			quoteTime = (LocalDateTime) msmRow.get("dt");
+			quoteTime = LocalDate.ofEpochDay(record.getDay()).atStartOfDay();
 		}
 
-		// Add SP table values to quote row
-		msmRow.put("dtSerial", LocalDateTime.now()); // TODO Confirm assumption that dtSerial is timestamp of record update
-		msmRow.put("src", (long) SRC_ONLINE);
-
-		// Update SP table with quote row
-		IndexCursor spCursor = CursorBuilder.createCursor(spTable.getPrimaryKeyIndex());
-		Map<String, Object> spRowPattern = new HashMap<>();
-		spRowPattern.put("hsec", hsec);
-		Iterator<Row> spIt = new IterableBuilder(spCursor).setMatchPattern(spRowPattern).forward().iterator();
-		Map<String, Object> spRow = new HashMap<>();
-		Map<String, Object> highestSpRow = new HashMap<>();
-		if (spIt.hasNext()) {
-			// Get dates from first and last rows for this hsec
-			spRow = spIt.next();
-			LocalDate firstDate = ((LocalDateTime) spRow.get("dt")).toLocalDate();
-			spIt = new IterableBuilder(spCursor).setMatchPattern(spRowPattern).reverse().iterator();
-			spRow = spIt.next();
-			LocalDate lastDate = ((LocalDateTime) spRow.get("dt")).toLocalDate();
-
-			// Get difference in days between dates of first and last rows and quote date
-			LocalDate quoteDate = ((LocalDateTime) msmRow.get("dt")).toLocalDate();
-			// long firstDaysDiff = Math.abs(Duration.between(firstDate,
-			// quoteDate).toDays());
-			long firstDaysDiff = Math.abs(ChronoUnit.DAYS.between(firstDate, quoteDate));
-			long lastDaysDiff = Math.abs(ChronoUnit.DAYS.between(lastDate, quoteDate));
-			LOGGER.debug("Timestamps: first={}, last={}, quote={}", firstDate, lastDate, quoteDate);
-			LOGGER.debug("Days difference: first->quote={}, last->quote={}", firstDaysDiff, lastDaysDiff);
-
-			// Create forward iterator again if first row date is closest to quote date
-			if (firstDaysDiff < lastDaysDiff) {
-				spIt = new IterableBuilder(spCursor).setMatchPattern(spRowPattern).reverse().iterator();
-				spRow = spIt.next();
+		// SP table values not in the quote record
+		LocalDateTime dtSerial = LocalDateTime.now(); // TODO Confirm assumption that dtSerial is timestamp of record update
+
+		// Search SP table index for same-day quote or most recent previous quote
+		startTime = System.nanoTime();
+		int quoteDay = record.getDay();
+		SpIndex.History history = spIndex.get(hsec);
+		int highest = -1;
+		int sameDay = -1;
+		if (history != null) {
+			int first = history.lowerBound(quoteDay);
+			int last = history.upperBound(quoteDay);
+			highest = first - 1;
+			for (int i = first; i < last; i++) {
+				int src = history.src(i);
+				if (src == SRC_ONLINE || src == SRC_MANUAL) {
+					sameDay = i;
+				} else if (src < SRC_MANUAL) { // transaction price source
+					highest = i;
+				}
 			}
+			metrics.add(Counter.ROWS_SCANNED, last - first);
+			event.rowsScanned = last - first;
+			LOGGER.debug("SP table index search: hsec={}, rows={}, quote day={}, same-day={}, highest={}", hsec, history.size(), quoteDay, sameDay, highest);
+		}
 
-			// Search SP table for same-day quote or most recent previous quote
-			LocalDate rowDate;
-			LocalDate highestDate = LocalDate.ofEpochDay(0);
-			while (true) {
-				LOGGER.debug("Highest seen date: {}", highestDate);
-				LOGGER.debug(spRow);
-				int src = (int) spRow.get("src");
-				rowDate = ((LocalDateTime) spRow.get("dt")).toLocalDate();
-				// Update highest seen date and row
-				if (rowDate.isAfter(highestDate)) {
-					if (rowDate.isBefore(quoteDate)) { // update for any price source
-						highestDate = rowDate;
-						highestSpRow = spRow;
-					} else if (rowDate.equals(quoteDate) && src < SRC_MANUAL) { // update for transaction price source
-						highestDate = rowDate;
-						highestSpRow = spRow;
-					}
+		if (sameDay >= 0) {
+			// Found existing quote for this quote date
+			metrics.recordPhase(Phase.SCAN, startTime);
+			if (updateStatus == UpdateStatus.STALE) {
+				Object dChange = getSpValue(history, sameDay, spColumns.get(QuoteColumn.CHANGE));
+				if (dChange == null || ((Number) dChange).doubleValue() == 0) {
+					incSummary(quoteType, updateStatus, event);
+					LOGGER.warn("Skipped update for symbol {}, received stale quote data: timestamp={}, age days={}", symbol, quoteTime, quoteAgeDays);
+					return;
+				} else {
+					LOGGER.warn("Received new stale quote data for symbol {}, setting change value in SP table to zero: timestamp={}, age days={}", symbol, quoteTime, quoteAgeDays);
+					record.setNumber(QuoteColumn.CHANGE, 0);
+					updateStatus = UpdateStatus.NEW_STALE;
 				}
-				// Check for existing quote for this quote date
-				if (rowDate.equals(quoteDate)) {
-					if (src == SRC_ONLINE || src == SRC_MANUAL) {
-						if (updateStatus == UpdateStatus.STALE) {
-							if ((double) spRow.get("dChange") == 0) {
-								incSummary(quoteType, updateStatus);
-								LOGGER.warn("Skipped update for symbol {}, received stale quote data: timestamp={}, age days={}", symbol, quoteTime, quoteAgeDays);
-								return;
-							} else {
-								LOGGER.warn("Received new stale quote data for symbol {}, setting change value in SP table to zero: timestamp={}, age days={}", symbol, quoteTime, quoteAgeDays);
-								msmRow.put("dChange", 0);
-								updateStatus = UpdateStatus.NEW_STALE;
+			}
+			// Write quote values to SP row
+			String target = updateSpRow(history, sameDay, record, dtSerial, writeBehind);
+			event.hsp = history.hsp(sameDay);
+			history.setSrc(sameDay, SRC_ONLINE);
+			spIndex.getLatestPrices().update(hsec, record.getNumber(QuoteColumn.PRICE), SRC_ONLINE, history.hsp(sameDay));
+			incSummary(quoteType, updateStatus, event);
+			LOGGER.log(quoteLogLevel, "Updated previous quote for symbol {} in SP table{}: new price={}, timestamp={}", symbol, target, record.getNumber(QuoteColumn.PRICE), quoteTime);
+			return;
+		}
+		metrics.recordPhase(Phase.SCAN, startTime);
+
+		if (highest < 0) {
+			LOGGER.log(quoteLogLevel, "Cannot find quote for symbol {} in SP table with timestamp earlier than new quote timestamp", symbol);
+		} else {
+			LOGGER.log(quoteLogLevel, "Found previous quote for symbol {} in SP table: hsp={}, timestamp={}", symbol, history.hsp(highest), LocalDate.ofEpochDay(history.day(highest)));
+		}
+
+		// Add quote record to SP row append list
+		int newHsp = addToAppendList(hsec, record, dtSerial, 1);
+		event.hsp = newHsp;
+		incSummary(quoteType, updateStatus, event);
+		LOGGER.log(quoteLogLevel, "Added new quote for symbol {} to SP table append list: price={}, hsp={}, timestamp={}", symbol, record.getNumber(QuoteColumn.PRICE), newHsp, quoteTime);
+		return;
+	}
+
+	/**
+	 * Backfills the SP table with historical prices from a batch of quote rows.
+	 * The SEC table is not updated. Each row is merged with the existing prices
+	 * of its security by the same rules as {@link #update(Map)}: a same-day
+	 * online or manual price is updated, otherwise a new price is added. When the
+	 * rows for each security are sorted by date, the prices of the security are
+	 * merged in a single forward pass over its price history.
+	 * <p>
+	 * Updated prices are written in one pass in table page order, and new prices
+	 * are added to the SP table in large batches, with the next hsp written to
+	 * the DHD data blob before each batch is added. A row that cannot be validated
+	 * is counted and recorded in the result, and does not stop the rest of the
+	 * backfill.
+	 * 
+	 * @param sourceRows the rows containing the historical prices
+	 * @return the result of the backfill
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public UpdateResult backfill(Iterable<? extends Map<String, Object>> sourceRows) throws IOException, SQLException {
+		return backfill(sourceRows.iterator());
+	}
+
+	/**
+	 * Backfills the SP table with historical prices from a quote source.
+	 * 
+	 * @param source the source of the rows containing the historical prices
+	 * @return the result of the backfill
+	 * @throws IOException
+	 * @throws SQLException
+	 * @see #backfill(Iterable)
+	 */
+	public UpdateResult backfill(QuoteSource source) throws IOException, SQLException {
+		try {
+			return backfill(source.iterator());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private UpdateResult backfill(Iterator<? extends Map<String, Object>> sourceRows) throws IOException, SQLException {
+		synchronized (msmDb) {
+			msmDb.checkWritable();
+			load();
+			result = new UpdateResult();
+			try {
+				LocalDateTime dtSerial = LocalDateTime.now();
+				SpIndex.History lastHistory = null;
+				int lastDay = Integer.MIN_VALUE;
+				int position = 0; // position in the price history of the first row on or after the last quote day
+				while (sourceRows.hasNext()) {
+					QuoteRecord record;
+					try {
+						record = build(sourceRows.next(), quoteRecord);
+					} catch (MsmInstrumentException e) {
+						result.addError(e.getMessage());
+						continue;
+					}
+					String symbol = record.getSymbol();
+					String quoteType = record.getType();
+					SymbolIndex.Entry secEntry = symbolIndex.get(symbol);
+					if (secEntry == null) {
+						incSummary(quoteType, UpdateStatus.NOT_FOUND);
+						result.addError("Cannot find symbol " + symbol + " in SEC table");
+						continue;
+					}
+
+					// Search price history for same-day quote, moving forward from the last quote day if the rows are in date order
+					long startTime = System.nanoTime();
+					int quoteDay = record.getDay();
+					SpIndex.History history = spIndex.get(secEntry.hsec);
+					int sameDay = -1;
+					if (history != null) {
+						if (history != lastHistory || quoteDay < lastDay) {
+							position = history.lowerBound(quoteDay);
+						}
+						while (position < history.size() && history.day(position) < quoteDay) {
+							position++;
+						}
+						int i;
+						for (i = position; i < history.size() && history.day(i) == quoteDay; i++) {
+							int src = history.src(i);
+							if (src == SRC_ONLINE || src == SRC_MANUAL) {
+								sameDay = i;
 							}
 						}
-						// Merge quote row into SP row and write to SP table
-						spRow.putAll(msmRow); // TODO Should spRow be sanitised first?
-						spCursor.updateCurrentRowFromMap(spRow);
-						incSummary(quoteType, updateStatus);
-						LOGGER.info("Updated previous quote for symbol {} in SP table: new price={}, timestamp={}", symbol, spRow.get("dPrice"), quoteTime);
-						return;
+						metrics.add(Counter.ROWS_SCANNED, i - position);
+					}
+					lastHistory = history;
+					lastDay = quoteDay;
+					metrics.recordPhase(Phase.SCAN, startTime);
+
+					if (sameDay >= 0) {
+						// Write quote values to existing SP row
+						updateSpRow(history, sameDay, record, dtSerial, true);
+						history.setSrc(sameDay, SRC_ONLINE);
+						spIndex.getLatestPrices().update(secEntry.hsec, record.getNumber(QuoteColumn.PRICE), SRC_ONLINE, history.hsp(sameDay));
+						LOGGER.debug("Backfill updated quote for symbol {}: price={}, day={}", symbol, record.getNumber(QuoteColumn.PRICE), quoteDay);
+					} else {
+						// Add quote record to SP row append list
+						addToAppendList(secEntry.hsec, record, dtSerial, BACKFILL_BATCH_ROWS - newSpRows.size());
+						if (newSpRows.size() >= BACKFILL_BATCH_ROWS) {
+							appendNewRows();
+						}
 					}
-					break;
+					incSummary(quoteType, record.updateStatus);
 				}
-				// Loop
-				if (spIt.hasNext()) {
-					spRow = spIt.next();
+				releaseHsps();
+				addNewRows();
+				return result;
+			} finally {
+				result = null;
+			}
+		}
+	}
+
+	/**
+	 * Adds a quote record to the SP table append list and the SP table index. The
+	 * hsp of the new row is taken from a block of hsps reserved from the next hsp
+	 * in the DHD data blob, and a new block is reserved when the block is used up.
+	 * The hsps of the rows in the append list must be consecutive, so if another
+	 * instance has reserved hsps since the list was started, the list is first
+	 * added to the SP table.
+	 * 
+	 * @param hsec     the hsec of the security
+	 * @param record   the quote record containing the quote data
+	 * @param dtSerial the time of the update
+	 * @param reserve  the number of hsps to reserve if a new block is needed
+	 * @return the hsp of the new SP row
+	 * @throws IOException
+	 */
+	private int addToAppendList(int hsec, QuoteRecord record, LocalDateTime dtSerial, int reserve) throws IOException {
+		if (nextHsp == hspLimit) {
+			int first = msmDb.allocateDhdDataInt(DhdDataValue.SP_NEXT_PK, reserve);
+			if (first != firstNewHsp + newSpRows.size()) {
+				appendNewRows();
+				firstNewHsp = first;
+			}
+			nextHsp = first;
+			hspLimit = first + reserve;
+		}
+		int hsp = nextHsp++;
+		Object[] spRow = spColumns.newRow();
+		spHspCol.setRowValue(spRow, hsp);
+		spHsecCol.setRowValue(spRow, hsec);
+		setSpRowValues(record, spRow, dtSerial);
+		newSpRows.add(spRow);
+		spIndex.add(hsec, record.getDay(), hsp, SRC_ONLINE, record.getNumber(QuoteColumn.PRICE), null);
+		return hsp;
+	}
+
+	/**
+	 * Returns the unused hsps of the reserved block to the next hsp in the DHD
+	 * data blob, if no other hsps have been reserved since the block.
+	 * 
+	 * @throws IOException
+	 */
+	private void releaseHsps() throws IOException {
+		if (nextHsp != hspLimit && msmDb.getDhdDataInt(DhdDataValue.SP_NEXT_PK) == hspLimit) {
+			msmDb.setDhdDataInt(DhdDataValue.SP_NEXT_PK, nextHsp);
+		}
+		hspLimit = nextHsp;
+		return;
+	}
+
+	/**
+	 * Sets the values of a quote record, and the SP table values that are not in
+	 * the quote record, in an SP table row array.
+	 * 
+	 * @param record   the quote record containing the quote data
+	 * @param spRow    the SP table row array
+	 * @param dtSerial the time of the update
+	 */
+	private void setSpRowValues(QuoteRecord record, Object[] spRow, LocalDateTime dtSerial) {
+		spColumns.setRowValues(record, spRow);
+		spSerialCol.setRowValue(spRow, dtSerial);
+		spSrcCol.setRowValue(spRow, SRC_ONLINE_VALUE);
+		return;
+	}
+
+	/**
+	 * Gets a column value of the SEC table row under the SEC table cursor, from
+	 * the SEC table change buffer if the value has a buffered update.
+	 * 
+	 * @param rowId  the location of the row
+	 * @param column the column
+	 * @return the value
+	 * @throws IOException
+	 */
+	private Object getSecValue(RowId rowId, Column column) throws IOException {
+		Object value = secChanges.getValue(rowId, column);
+		return value == Column.KEEP_VALUE ? secCursor.getCurrentRowValue(column) : value;
+	}
+
+	/**
+	 * Adds an update row to a change buffer.
+	 * 
+	 * @param changes the change buffer
+	 * @param rowId   the location of the row
+	 * @param row     the update row array
+	 */
+	private void bufferUpdate(RowChangeBuffer changes, RowId rowId, Object[] row) {
+		if (changes.put(rowId, row)) {
+			metrics.add(Counter.ROWS_COALESCED, 1);
+		}
+		return;
+	}
+
+	/**
+	 * Positions the SP table cursor on an SP table row from the SP table index.
+	 * 
+	 * @param history the SP table index price history of the security
+	 * @param i       the position of the row in the price history
+	 * @return the location of the row
+	 * @throws IOException
+	 */
+	private RowId findSpRow(SpIndex.History history, int i) throws IOException {
+		RowId rowId = history.rowId(i);
+		if (rowId == null || !spCursor.findRow(rowId)) {
+			// Row was added to the SP table after the index was built
+			int rowHsp = history.hsp(i);
+			if (!spCursor.findFirstRow(spHspCol, rowHsp)) {
+				throw new IOException("Cannot find row in SP table: hsp=" + rowHsp);
+			}
+			rowId = spCursor.getCurrentRow(SP_KEY_COLS).getId();
+			history.setRowId(i, rowId);
+		}
+		return rowId;
+	}
+
+	/**
+	 * Gets a column value of an SP table row from the SP table index. The value
+	 * is taken from the SP table append list or the SP table change buffer if the
+	 * row is there, otherwise from the SP table.
+	 * 
+	 * @param history the SP table index price history of the security
+	 * @param i       the position of the row in the price history
+	 * @param column  the column
+	 * @return the value
+	 * @throws IOException
+	 */
+	private Object getSpValue(SpIndex.History history, int i, Column column) throws IOException {
+		int rowHsp = history.hsp(i);
+		if (rowHsp >= firstNewHsp) {
+			// Row is still in the SP table append list
+			return column.getRowValue(newSpRows.get(rowHsp - firstNewHsp));
+		}
+		RowId rowId = history.rowId(i);
+		Object value = rowId == null ? Column.KEEP_VALUE : spChanges.getValue(rowId, column);
+		if (value == Column.KEEP_VALUE) {
+			findSpRow(history, i);
+			value = spCursor.getCurrentRowValue(column);
+		}
+		return value;
+	}
+
+	/**
+	 * Writes the values of a quote record to an SP table row from the SP table
+	 * index. A row still in the SP table append list is updated there, otherwise
+	 * the update is added to the SP table change buffer or written to the SP
+	 * table.
+	 * 
+	 * @param history  the SP table index price history of the security
+	 * @param i        the position of the row in the price history
+	 * @param record   the quote record containing the quote data
+	 * @param dtSerial the time of the update
+	 * @param buffer   true to add the update to the SP table change buffer
+	 * @return a description of where the row was updated, for logging
+	 * @throws IOException
+	 */
+	private String updateSpRow(SpIndex.History history, int i, QuoteRecord record, LocalDateTime dtSerial, boolean buffer) throws IOException {
+		int rowHsp = history.hsp(i);
+		if (rowHsp >= firstNewHsp) {
+			// Row is still in the SP table append list
+			setSpRowValues(record, newSpRows.get(rowHsp - firstNewHsp), dtSerial);
+			return " append list";
+		}
+		setSpRowValues(record, spUpdate, dtSerial);
+		try {
+			if (buffer) {
+				RowId rowId = history.rowId(i);
+				bufferUpdate(spChanges, rowId == null ? findSpRow(history, i) : rowId, spUpdate);
+				return " change buffer";
+			}
+			findSpRow(history, i);
+			long startTime = System.nanoTime();
+			spCursor.updateCurrentRow(spUpdate);
+			metrics.recordPhase(Phase.WRITE, startTime);
+			metrics.add(Counter.ROWS_WRITTEN, 1);
+			return "";
+		} finally {
+			QuoteColumnMap.clearUpdateRow(spUpdate);
+		}
+	}
+
+	/**
+	 * Thins the price history in the SP table according to retention rules, to
+	 * bound the size of the table. In each week or month older than the daily
+	 * period only the last online price is kept. Manual and transaction prices
+	 * are never removed, nor is the most recent price of a security.
+	 * <p>
+	 * The price histories are thinned in a single ordered pass over the SP table
+	 * index. The rows to remove are then deleted in table page order, in batches.
+	 * Any buffered updates and SP table append list rows are written first. In a
+	 * dry run the rows to remove are counted, and the Money file is not changed.
+	 * 
+	 * @param retention the retention rules
+	 * @param dryRun    true to count the rows to remove without removing them
+	 * @return the number of rows removed, or that would be removed in a dry run
+	 * @throws IOException
+	 * @throws SQLException
+	 */
+	public int compactPriceHistory(SpRetention retention, boolean dryRun) throws IOException, SQLException {
+		synchronized (msmDb) {
+			if (!dryRun) {
+				msmDb.checkWritable();
+			}
+			load();
+			if (!dryRun) {
+				addNewRows();
+			}
+			SpCompactEvent event = new SpCompactEvent();
+			event.begin();
+			LocalDate today = LocalDate.now();
+			int dailyCutoff = retention.getDailyCutoff(today);
+			int weeklyCutoff = retention.getWeeklyCutoff(today);
+			LatestPrices latestPrices = spIndex.getLatestPrices();
+
+			// Find the rows to remove from each price history
+			long startTime = System.nanoTime();
+			List<SpIndex.History> histories = new ArrayList<>();
+			List<boolean[]> removals = new ArrayList<>();
+			List<RowId> rowIds = new ArrayList<>();
+			int removed = 0;
+			int scanned = 0;
+			for (int hsec : spIndex.getHsecs()) {
+				SpIndex.History history = spIndex.get(hsec);
+				int latestHsp = latestPrices.contains(hsec) ? latestPrices.getHsp(hsec) : -1;
+				int end = history.lowerBound(dailyCutoff);
+				scanned += end;
+				boolean[] removal = selectCompactRows(history, latestHsp, dailyCutoff, weeklyCutoff);
+				if (removal == null) {
 					continue;
 				}
-				break;
+				for (int i = 0; i < end; i++) {
+					if (removal[i]) {
+						removed++;
+						if (!dryRun) {
+							rowIds.add(findSpRow(history, i));
+						}
+					}
+				}
+				histories.add(history);
+				removals.add(removal);
 			}
+			metrics.add(Counter.ROWS_SCANNED, scanned);
+			metrics.recordPhase(Phase.SCAN, startTime);
+
+			// Delete the rows in table page order
+			if (!dryRun && !rowIds.isEmpty()) {
+				startTime = System.nanoTime();
+				rowIds.sort(null);
+				Cursor cursor = CursorBuilder.createCursor(spTable);
+				for (int from = 0; from < rowIds.size(); from += COMPACT_BATCH_ROWS) {
+					int to = Math.min(from + COMPACT_BATCH_ROWS, rowIds.size());
+					for (RowId rowId : rowIds.subList(from, to)) {
+						if (!cursor.findRow(rowId)) {
+							throw new IOException("Cannot find row in SP table: row id=" + rowId);
+						}
+						cursor.deleteCurrentRow();
+					}
+					metrics.add(Counter.ROWS_DELETED, to - from);
+					LOGGER.debug("Deleted SP table rows: rows={}/{}", to, rowIds.size());
+				}
+				for (int i = 0; i < histories.size(); i++) {
+					histories.get(i).remove(removals.get(i));
+				}
+				metrics.recordPhase(Phase.FLUSH, startTime);
+			}
+
+			event.rowCount = removed;
+			event.dryRun = dryRun;
+			event.commit();
+			LOGGER.info("{} {} {} from SP table for {} {}, total SP table rows={}", dryRun ? "Would remove" : "Removed", removed, removed == 1 ? "price" : "prices", histories.size(), histories.size() == 1 ? "security" : "securities", spTable.getRowCount());
+			return removed;
 		}
+	}
 
-		if (highestSpRow.isEmpty()) {
-			LOGGER.info("Cannot find quote for symbol {} in SP table with timestamp earlier than new quote timestamp", symbol);
-		} else {
-			LOGGER.info("Found previous quote for symbol {} in SP table: price={}, hsp={}, timestamp={}", symbol, highestSpRow.get("dPrice"), highestSpRow.get("hsp"), highestSpRow.get("dt"));
+	/**
+	 * Selects the rows of a price history to remove under the retention rules.
+	 * Before the daily cutoff only the last online price in each week or month is
+	 * kept. Manual and transaction prices are never selected, nor is the most
+	 * recent price of the security.
+	 * 
+	 * @param history      the SP table index price history of the security
+	 * @param latestHsp    the hsp of the most recent price of the security, or -1
+	 *                     if none
+	 * @param dailyCutoff  the first day for which every price is kept
+	 * @param weeklyCutoff the first day for which weekly closes are kept
+	 * @return the rows to remove, by position in the price history, or null if
+	 *         there are none
+	 */
+	static boolean[] selectCompactRows(SpIndex.History history, int latestHsp, int dailyCutoff, int weeklyCutoff) {
+		int end = history.lowerBound(dailyCutoff);
+		boolean[] removal = null;
+		int close = -1; // position of the last online price in the current week or month
+		long closeBucket = 0;
+		for (int i = 0; i < end; i++) {
+			if (history.src(i) != SRC_ONLINE) {
+				continue; // manual or transaction price
+			}
+			long bucket = SpRetention.bucket(history.day(i), weeklyCutoff);
+			if (close >= 0 && bucket == closeBucket && history.hsp(close) != latestHsp) {
+				// Previous price in the same week or month is not the close
+				if (removal == null) {
+					removal = new boolean[history.size()];
+				}
+				removal[close] = true;
+			}
+			close = i;
+			closeBucket = bucket;
 		}
+		return removal;
+	}
 
-		// Add quote row to SP row append list
-		spRow.put("hsp", hsp);
-		spRow.put("hsec", hsec);
-		spRow.putAll(msmRow); // TODO Should spRow be sanitised first?
-		newSpRows.add(spRow);
-		incSummary(quoteType, updateStatus);
-		LOGGER.info("Added new quote for symbol {} to SP table append list: price={}, hsp={}, timestamp={}", symbol, spRow.get("dPrice"), hsp++, quoteTime);
+	/**
+	 * Gets the price history of a security from the SP table for a date range.
+	 * 
+	 * @param symbol the symbol of the security
+	 * @param from   the first date of the range, or null for no first date
+	 * @param to     the last date of the range, or null for no last date
+	 * @return the price history, or null if the symbol is not in the SEC table
+	 * @throws IOException
+	 */
+	public PriceHistory getPriceHistory(String symbol, LocalDate from, LocalDate to) throws IOException {
+		load();
+		SymbolIndex.Entry secEntry = symbolIndex.get(normaliseSymbol(symbol));
+		return secEntry == null ? null : getPriceHistory(secEntry.hsec, from, to);
+	}
+
+	/**
+	 * Gets the price history of a security from the SP table for a date range.
+	 * 
+	 * @param hsec the hsec of the security
+	 * @param from the first date of the range, or null for no first date
+	 * @param to   the last date of the range, or null for no last date
+	 * @return the price history
+	 * @throws IOException
+	 */
+	public PriceHistory getPriceHistory(int hsec, LocalDate from, LocalDate to) throws IOException {
+		return getPriceHistories(List.of(hsec), from, to).get(hsec);
+	}
+
+	/**
+	 * Gets the price histories of a number of securities from the SP table for a
+	 * date range. The rows in the range are found in the SP table index, and are
+	 * then read in one pass over the SP table in table page order, reading only
+	 * the price columns of each row.
+	 * 
+	 * @param hsecs the hsecs of the securities
+	 * @param from  the first date of the range, or null for no first date
+	 * @param to    the last date of the range, or null for no last date
+	 * @return the price histories by hsec, in the order of the hsecs
+	 * @throws IOException
+	 */
+	public Map<Integer, PriceHistory> getPriceHistories(Collection<Integer> hsecs, LocalDate from, LocalDate to) throws IOException {
+		synchronized (msmDb) {
+			load();
+			int fromDay = from == null ? Integer.MIN_VALUE : (int) from.toEpochDay();
+			int toDay = to == null ? Integer.MAX_VALUE : (int) to.toEpochDay();
+
+			// Find the range of each price history
+			Map<Integer, PriceHistory> priceHistories = new LinkedHashMap<>();
+			int total = 0;
+			for (int hsec : hsecs) {
+				SpIndex.History history = spIndex.get(hsec);
+				if (history != null) {
+					total += history.upperBound(toDay) - history.lowerBound(fromDay);
+				}
+			}
+
+			// Fill the dates and sources from the index, and the other columns of rows in the SP table append list
+			RowId[] rowIds = new RowId[total];
+			PriceHistory[] targets = new PriceHistory[total];
+			int[] slots = new int[total];
+			int n = 0;
+			for (int hsec : hsecs) {
+				if (priceHistories.containsKey(hsec)) {
+					continue;
+				}
+				SpIndex.History history = spIndex.get(hsec);
+				int first = history == null ? 0 : history.lowerBound(fromDay);
+				int last = history == null ? 0 : history.upperBound(toDay);
+				PriceHistory priceHistory = new PriceHistory(hsec, last - first);
+				priceHistories.put(hsec, priceHistory);
+				for (int i = first; i < last; i++) {
+					int slot = i - first;
+					priceHistory.days[slot] = history.day(i);
+					priceHistory.srcs[slot] = history.src(i);
+					int rowHsp = history.hsp(i);
+					if (rowHsp >= firstNewHsp) {
+						// Row is in the SP table append list
+						Object[] spRow = newSpRows.get(rowHsp - firstNewHsp);
+						setPrices(priceHistory, slot, getPriceValue(spRow, QuoteColumn.PRICE), getPriceValue(spRow, QuoteColumn.OPEN), getPriceValue(spRow, QuoteColumn.HIGH), getPriceValue(spRow, QuoteColumn.LOW),
+								getPriceValue(spRow, QuoteColumn.VOLUME));
+					} else {
+						RowId rowId = history.rowId(i);
+						rowIds[n] = rowId == null ? findSpRow(history, i) : rowId;
+						targets[n] = priceHistory;
+						slots[n] = slot;
+						n++;
+					}
+				}
+			}
+
+			// Read the price columns of the other rows in table page order, taking any buffered updates from the SP table change buffer
+			Integer[] order = new Integer[n];
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, (a, b) -> rowIds[a].compareTo(rowIds[b]));
+			Cursor cursor = CursorBuilder.createCursor(spTable);
+			Column priceCol = spColumns.get(QuoteColumn.PRICE);
+			Column openCol = spColumns.get(QuoteColumn.OPEN);
+			Column highCol = spColumns.get(QuoteColumn.HIGH);
+			Column lowCol = spColumns.get(QuoteColumn.LOW);
+			Column volCol = spColumns.get(QuoteColumn.VOLUME);
+			for (int i : order) {
+				if (!cursor.findRow(rowIds[i])) {
+					throw new IOException("Cannot find row in SP table: " + rowIds[i]);
+				}
+				setPrices(targets[i], slots[i], getPriceValue(cursor, rowIds[i], priceCol), getPriceValue(cursor, rowIds[i], openCol), getPriceValue(cursor, rowIds[i], highCol), getPriceValue(cursor, rowIds[i], lowCol),
+						getPriceValue(cursor, rowIds[i], volCol));
+			}
+			LOGGER.debug("Read SP table price histories: securities={}, rows={}, rows read={}", priceHistories.size(), total, n);
+			return priceHistories;
+		}
+	}
+
+	private Object getPriceValue(Object[] spRow, QuoteColumn column) {
+		Column spCol = spColumns.get(column);
+		return spCol == null ? null : spCol.getRowValue(spRow);
+	}
+
+	private Object getPriceValue(Cursor cursor, RowId rowId, Column column) throws IOException {
+		if (column == null) {
+			return null;
+		}
+		Object value = spChanges.getValue(rowId, column);
+		return value == Column.KEEP_VALUE ? cursor.getCurrentRowValue(column) : value;
+	}
+
+	private static void setPrices(PriceHistory priceHistory, int slot, Object price, Object open, Object high, Object low, Object vol) {
+		priceHistory.prices[slot] = SpIndex.toPrice(price);
+		priceHistory.opens[slot] = SpIndex.toPrice(open);
+		priceHistory.highs[slot] = SpIndex.toPrice(high);
+		priceHistory.lows[slot] = SpIndex.toPrice(low);
+		priceHistory.volumes[slot] = SpIndex.toPrice(vol);
 		return;
 	}
 
+	/**
+	 * Gets the most recent price of each security in the SP table. The snapshot
+	 * is built with the SP table index when the tables are loaded, and is kept up
+	 * to date as quotes are applied, so it is not necessary to read the SP table
+	 * again.
+	 * 
+	 * @return the most recent prices
+	 * @throws IOException
+	 */
+	public LatestPrices getLatestPrices() throws IOException {
+		load();
+		return spIndex.getLatestPrices();
+	}
+
 	/**
 	 * Builds the list of security symbols, corresponding country codes and security
 	 * comments from the SEC table.
@@ -230,33 +907,113 @@ public class MsmSecurity extends MsmInstrument {
 	 * @throws IOException
 	 */
 	public List<String[]> getSymbols() throws IOException {
-		List<String[]> secSymbols = new ArrayList<>();
-		Map<String, Object> row = null;
-		Map<String, Object> rowPattern = new HashMap<>();
-		Iterator<Row> secIt;
-		rowPattern.put("fOLQuotes", true); // online update flag set
-		IndexCursor secCursor = CursorBuilder.createCursor(secTable.getPrimaryKeyIndex());
-		secIt = new IterableBuilder(secCursor).setMatchPattern(rowPattern).forward().iterator();
-		while (secIt.hasNext()) {
-			row = secIt.next();
-			Object secSymbol;
-			if ((secSymbol = row.get("szSymbol")) != null) {
-				String[] secCols = { secSymbol.toString(), msmDb.getCntryCode((int) row.get("hcntry")), "" };
-				Object secComment;
-				if ((secComment = row.get("mComment")) != null)
-					secCols[2] = secComment.toString();
-				secSymbols.add(secCols);
+		synchronized (msmDb) {
+			try {
+				return streamSymbols().map(QuoteSymbol::toArray).collect(Collectors.toList());
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
 			}
 		}
-		return secSymbols;
+	}
+
+	/**
+	 * Streams the security symbols, corresponding country codes and security
+	 * comments from the SEC table. The symbols are read lazily in one forward
+	 * pass over the SEC table, in primary key order, and only the columns needed
+	 * are read. Each symbol is read while holding the lock on the Money database
+	 * instance, so the stream may be consumed while a prewarm is running. I/O
+	 * errors are thrown as {@link UncheckedIOException}.
+	 *
+	 * @return the stream of security symbols with online quotes enabled
+	 * @throws IOException
+	 */
+	public Stream<QuoteSymbol> streamSymbols() throws IOException {
+		IndexCursor cursor;
+		synchronized (msmDb) {
+			cursor = CursorBuilder.createCursor(msmDb.getTable(SEC_TABLE).getPrimaryKeyIndex());
+		}
+		return StreamSupport.stream(new Spliterators.AbstractSpliterator<QuoteSymbol>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+
+			@Override
+			public boolean tryAdvance(Consumer<? super QuoteSymbol> action) {
+				QuoteSymbol symbol = null;
+				synchronized (msmDb) {
+					try {
+						Row row;
+						while (symbol == null && (row = cursor.getNextRow(SYMBOL_COLS)) != null) {
+							Object secSymbol;
+							if (Boolean.TRUE.equals(row.get("fOLQuotes")) && (secSymbol = row.get("szSymbol")) != null) { // online update flag set
+								Object secComment = row.get("mComment");
+								symbol = new QuoteSymbol(secSymbol.toString(), msmDb.getCntryCode((int) row.get("hcntry")), secComment == null ? "" : secComment.toString());
+							}
+						}
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				if (symbol == null) {
+					return false;
+				}
+				action.accept(symbol);
+				return true;
+			}
+		}, false);
+	}
+
+	/**
+	 * Writes the buffered updates to existing SEC and SP table rows, each table in
+	 * one pass in table page order.
+	 * 
+	 * @throws IOException
+	 */
+	public void flushUpdates() throws IOException {
+		synchronized (msmDb) {
+			if (spIndex != null && secChanges.size() + spChanges.size() > 0) {
+				long startTime = System.nanoTime();
+				int rows = secChanges.flush() + spChanges.flush();
+				metrics.recordPhase(Phase.FLUSH, startTime);
+				metrics.add(Counter.ROWS_WRITTEN, rows);
+				LOGGER.info("Wrote {} buffered {} to SEC and SP tables", rows, rows == 1 ? "row update" : "row updates");
+			}
+		}
+		return;
 	}
 
 	public void addNewRows() throws IOException, SQLException {
+		synchronized (msmDb) {
+			if (spIndex == null) {
+				return; // nothing to add as tables not loaded
+			}
+			flushUpdates();
+			appendNewRows();
+		}
+		return;
+	}
+
+	/**
+	 * Adds the rows in the SP table append list to the SP table. The next hsp in
+	 * the DHD data blob, already advanced past the hsps used by the rows, is first
+	 * written to the DHD table, so that an interrupted run cannot reuse them.
+	 * 
+	 * @throws IOException
+	 */
+	private void appendNewRows() throws IOException {
 		if (!newSpRows.isEmpty()) {
-			spTable.addRowsFromMaps(newSpRows);
+			long startTime = System.nanoTime();
+			if (msmDb.flushMetadata()) {
+				metrics.add(Counter.DHD_WRITES, 1);
+			}
+			SpAppendFlushEvent event = new SpAppendFlushEvent();
+			event.begin();
+			spTable.addRows(newSpRows);
 			LOGGER.info("Added {} new {} to SP table from SP table append list, total SP table rows={}", newSpRows.size(), newSpRows.size() == 1 ? "quote" : "quotes", spTable.getRowCount());
-			msmDb.setDhdDataInt(DhdDataValue.SP_NEXT_PK, hsp);
+			metrics.recordPhase(Phase.FLUSH, startTime);
+			metrics.add(Counter.ROWS_WRITTEN, newSpRows.size());
+			event.rowCount = newSpRows.size();
+			event.commit();
+			firstNewHsp += newSpRows.size();
+			newSpRows.clear();
 		}
 		return;
-	}	
+	}
 }
\ No newline at end of file
@@ -0,0 +1,126 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.time.LocalDate;
+
+/**
+ * The price history of a security from the SP table, held in columns. Each
+ * price is at the same position in every column, and the prices are in date
+ * order. A value that is missing from the SP table is held as NaN. The column
+ * arrays are returned without copying and must not be modified.
+ */
+public final class PriceHistory {
+
+	// Instance variables
+	private final int hsec;
+	private final int size;
+	final long[] days;
+	final double[] prices;
+	final double[] opens;
+	final double[] highs;
+	final double[] lows;
+	final double[] volumes;
+	final int[] srcs;
+
+	PriceHistory(int hsec, int size) {
+		this.hsec = hsec;
+		this.size = size;
+		days = new long[size];
+		prices = new double[size];
+		opens = new double[size];
+		highs = new double[size];
+		lows = new double[size];
+		volumes = new double[size];
+		srcs = new int[size];
+	}
+
+	/**
+	 * Gets the hsec of the security.
+	 *
+	 * @return the hsec
+	 */
+	public int getHsec() {
+		return hsec;
+	}
+
+	/**
+	 * Gets the number of prices.
+	 *
+	 * @return the number of prices
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Gets the price dates as epoch days.
+	 *
+	 * @return the dates
+	 */
+	public long[] getDays() {
+		return days;
+	}
+
+	/**
+	 * Gets the date of a price.
+	 *
+	 * @param i the position of the price
+	 * @return the date
+	 */
+	public LocalDate getDate(int i) {
+		return LocalDate.ofEpochDay(days[i]);
+	}
+
+	/**
+	 * Gets the dPrice column.
+	 *
+	 * @return the prices
+	 */
+	public double[] getPrices() {
+		return prices;
+	}
+
+	/**
+	 * Gets the dOpen column.
+	 *
+	 * @return the opening prices
+	 */
+	public double[] getOpens() {
+		return opens;
+	}
+
+	/**
+	 * Gets the dHigh column.
+	 *
+	 * @return the high prices
+	 */
+	public double[] getHighs() {
+		return highs;
+	}
+
+	/**
+	 * Gets the dLow column.
+	 *
+	 * @return the low prices
+	 */
+	public double[] getLows() {
+		return lows;
+	}
+
+	/**
+	 * Gets the vol column.
+	 *
+	 * @return the volumes
+	 */
+	public double[] getVolumes() {
+		return volumes;
+	}
+
+	/**
+	 * Gets the src column.
+	 *
+	 * @return the price sources
+	 */
+	public int[] getSrcs() {
+		return srcs;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,55 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The quote columns that may be defined in a {@link QuoteSchema}. The name of
+ * each column is the name of the quote value, which is also the name of the
+ * Money table column that receives it.
+ */
+enum QuoteColumn {
+	SYMBOL("xSymbol"), TYPE("xType"), DATE("dt"), LAST_UPDATE("dtLastUpdate"), PRICE("dPrice"), RATE("rate"), CHANGE("dChange"), OPEN("dOpen"), HIGH("dHigh"), LOW("dLow"), VOLUME("vol"),
+	WEEK52_LOW("d52WeekLow"), WEEK52_HIGH("d52WeekHigh"), BID("dBid"), ASK("dAsk"), CAPITALIZATION("dCapitalization"), SHARES_OUTSTANDING("dSharesOutstanding"), DIVIDEND_YIELD("dDividendYield"),
+	PE("dPE");
+
+	// Constants
+	private static final QuoteColumn[] COLUMNS = values();
+	private static final Map<String, QuoteColumn> NAMES = new HashMap<>();
+	static final int COUNT = COLUMNS.length;
+
+	// Instance variables
+	final String columnName;
+	final QuoteSchema.ValueType valueType;
+
+	static {
+		for (QuoteColumn column : COLUMNS) {
+			NAMES.put(column.columnName, column);
+		}
+	}
+
+	QuoteColumn(String columnName) {
+		this.columnName = columnName;
+		this.valueType = QuoteSchema.ValueType.forColumn(columnName);
+	}
+
+	/**
+	 * Gets a quote column by name.
+	 *
+	 * @param columnName the column name
+	 * @return the quote column, or null if there is no quote column with the name
+	 */
+	static QuoteColumn forName(String columnName) {
+		return NAMES.get(columnName);
+	}
+
+	/**
+	 * Gets a quote column by ordinal, without copying the array of values.
+	 *
+	 * @param ordinal the ordinal
+	 * @return the quote column
+	 */
+	static QuoteColumn forOrdinal(int ordinal) {
+		return COLUMNS[ordinal];
+	}
+}
\ No newline at end of file
@@ -0,0 +1,93 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.Arrays;
+
+import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Table;
+
+/**
+ * The columns of a Money table that receive quote values, looked up once by
+ * name so that a {@link QuoteRecord} is written to a row array through the
+ * column handles.
+ */
+final class QuoteColumnMap {
+
+	// Instance variables
+	private final Column[] columns = new Column[QuoteColumn.COUNT]; // table column by quote column ordinal, or null
+	private final long mapped; // bit mask of quote columns with a table column
+	private final int columnCount;
+
+	QuoteColumnMap(Table table) {
+		long mapped = 0;
+		for (Column column : table.getColumns()) {
+			QuoteColumn quoteColumn = QuoteColumn.forName(column.getName());
+			if (quoteColumn != null) {
+				columns[quoteColumn.ordinal()] = column;
+				mapped |= 1L << quoteColumn.ordinal();
+			}
+		}
+		this.mapped = mapped;
+		this.columnCount = table.getColumnCount();
+	}
+
+	/**
+	 * Gets the table column for a quote column.
+	 *
+	 * @param column the quote column
+	 * @return the table column, or null if the table has no such column
+	 */
+	Column get(QuoteColumn column) {
+		return columns[column.ordinal()];
+	}
+
+	/**
+	 * Creates a row array for a row update, in which every column keeps its
+	 * existing value.
+	 *
+	 * @return the row array
+	 */
+	Object[] newUpdateRow() {
+		Object[] row = new Object[columnCount];
+		clearUpdateRow(row);
+		return row;
+	}
+
+	/**
+	 * Creates a row array for a new row, in which every column is null.
+	 *
+	 * @return the row array
+	 */
+	Object[] newRow() {
+		return new Object[columnCount];
+	}
+
+	/**
+	 * Resets a row array for a row update so that every column keeps its
+	 * existing value. Jackcess replaces the placeholders with the existing
+	 * values when the row is written, so an update row must be reset before it is
+	 * reused.
+	 *
+	 * @param row the row array
+	 */
+	static void clearUpdateRow(Object[] row) {
+		Arrays.fill(row, Column.KEEP_VALUE);
+		return;
+	}
+
+	/**
+	 * Sets the values of a quote record in a row array, for each column present
+	 * in the record that the table has.
+	 *
+	 * @param record the quote record
+	 * @param row    the row array
+	 */
+	void setRowValues(QuoteRecord record, Object[] row) {
+		long bits = record.getPresent() & mapped;
+		while (bits != 0) {
+			int i = Long.numberOfTrailingZeros(bits);
+			columns[i].setRowValue(row, record.getValue(QuoteColumn.forOrdinal(i)));
+			bits &= bits - 1;
+		}
+		return;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,183 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pipeline that builds and validates MSM rows on worker threads and applies
+ * them to the Money file on the calling thread, which is the only thread that
+ * touches the database. Quote rows are read on a reader thread and passed to a
+ * worker lane chosen by symbol, so rows for the same symbol are applied in the
+ * order they are read. All queues are bounded, so a slow writer holds back the
+ * workers and the reader.
+ */
+class QuotePipeline {
+
+	// Constants
+	private static final Object END = new Object(); // end of lane marker
+	private static final long SHUTDOWN_TIMEOUT = 10; // seconds
+
+	// Instance variables
+	private final MsmInstrument instrument;
+	private final int lanes;
+	private final int queueCapacity;
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	/**
+	 * @param instrument    the instrument to update
+	 * @param threads       the number of worker threads
+	 * @param queueCapacity the number of rows each queue holds before the thread
+	 *                      feeding it blocks
+	 */
+	QuotePipeline(MsmInstrument instrument, int threads, int queueCapacity) {
+		if (threads < 1 || queueCapacity < 1) {
+			throw new IllegalArgumentException("Threads and queue capacity must be at least 1");
+		}
+		this.instrument = instrument;
+		this.lanes = threads;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Runs the pipeline until all of the quote rows have been applied. A row that
+	 * cannot be validated or applied is recorded in the instrument's update
+	 * result and does not stop the pipeline.
+	 *
+	 * @param sourceRows the rows containing the quote data to update
+	 * @throws IOException
+	 */
+	void run(Iterator<? extends Map<String, Object>> sourceRows) throws IOException {
+		List<BlockingQueue<Object>> laneQueues = new ArrayList<>(lanes);
+		for (int i = 0; i < lanes; i++) {
+			laneQueues.add(new ArrayBlockingQueue<>(queueCapacity));
+		}
+		BlockingQueue<Object> output = new ArrayBlockingQueue<>(queueCapacity);
+		AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(lanes + 1, r -> {
+			Thread thread = new Thread(r, "msmcore-quote-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			executor.execute(() -> read(sourceRows, laneQueues));
+			for (BlockingQueue<Object> laneQueue : laneQueues) {
+				executor.execute(() -> build(laneQueue, output));
+			}
+			write(output);
+		} finally {
+			executor.shutdownNow();
+			try {
+				executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		// Rethrow any failure from the reader or workers
+		Throwable t = failure.get();
+		if (t instanceof UncheckedIOException) {
+			throw ((UncheckedIOException) t).getCause();
+		} else if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new IOException(t);
+		}
+		return;
+	}
+
+	/**
+	 * Reads the quote rows and passes each one to its lane.
+	 */
+	private void read(Iterator<? extends Map<String, Object>> sourceRows, List<BlockingQueue<Object>> laneQueues) {
+		try {
+			while (sourceRows.hasNext() && failure.get() == null) {
+				Map<String, Object> sourceRow = sourceRows.next();
+				if (sourceRow instanceof QuoteRow) {
+					// Quote sources reuse their row
+					sourceRow = ((QuoteRow) sourceRow).copy();
+				}
+				laneQueues.get(Math.floorMod(instrument.getLaneKey(sourceRow).hashCode(), lanes)).put(sourceRow);
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Throwable t) {
+			failure.compareAndSet(null, t);
+		}
+		try {
+			for (BlockingQueue<Object> laneQueue : laneQueues) {
+				laneQueue.put(END);
+			}
+		} catch (InterruptedException e) {
+			// Pipeline aborted
+		}
+		return;
+	}
+
+	/**
+	 * Builds and validates the MSM rows for one lane.
+	 */
+	@SuppressWarnings("unchecked")
+	private void build(BlockingQueue<Object> laneQueue, BlockingQueue<Object> output) {
+		try {
+			Object item;
+			while ((item = laneQueue.take()) != END) {
+				try {
+					output.put(instrument.build((Map<String, Object>) item));
+				} catch (MsmInstrumentException e) {
+					instrument.result.addError(e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		} catch (Throwable t) {
+			failure.compareAndSet(null, t);
+		}
+		try {
+			output.put(END);
+		} catch (InterruptedException e) {
+			// Pipeline aborted
+		}
+		return;
+	}
+
+	/**
+	 * Applies the validated MSM rows until every lane has ended.
+	 */
+	private void write(BlockingQueue<Object> output) throws IOException {
+		int running = lanes;
+		try {
+			while (running > 0) {
+				Object item = output.take();
+				if (failure.get() != null) {
+					return;
+				} else if (item == END) {
+					running--;
+					continue;
+				}
+				try {
+					instrument.apply((QuoteRecord) item);
+				} catch (MsmInstrumentException e) {
+					instrument.result.addError(e.getMessage());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Quote update interrupted");
+		}
+		return;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,165 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * A quote built and validated against a {@link QuoteSchema}, with its values
+ * held by {@link QuoteColumn} in primitive arrays: numbers as doubles, dates as
+ * epoch days and timestamps as local epoch seconds. The columns that are
+ * present are held in a bit mask. A record is cleared and refilled for each
+ * quote, so a single record can be reused for any number of quotes.
+ */
+final class QuoteRecord {
+
+	// Instance variables
+	private final double[] numbers = new double[QuoteColumn.COUNT];
+	private final long[] times = new long[QuoteColumn.COUNT];
+	private final String[] texts = new String[QuoteColumn.COUNT];
+	private long present = 0; // bit mask of present columns, by column ordinal
+	UpdateStatus updateStatus = UpdateStatus.OK;
+
+	/**
+	 * Removes all of the values, ready for the next quote.
+	 */
+	void clear() {
+		present = 0;
+		updateStatus = UpdateStatus.OK;
+		return;
+	}
+
+	/**
+	 * Replaces the values of this record with a copy of the values of another
+	 * record.
+	 *
+	 * @param source the record to copy
+	 */
+	void copyFrom(QuoteRecord source) {
+		System.arraycopy(source.numbers, 0, numbers, 0, QuoteColumn.COUNT);
+		System.arraycopy(source.times, 0, times, 0, QuoteColumn.COUNT);
+		System.arraycopy(source.texts, 0, texts, 0, QuoteColumn.COUNT);
+		present = source.present;
+		updateStatus = source.updateStatus;
+		return;
+	}
+
+	/**
+	 * Checks whether a column has a value.
+	 *
+	 * @param column the column
+	 * @return true if the column has a value, otherwise false
+	 */
+	boolean has(QuoteColumn column) {
+		return (present & (1L << column.ordinal())) != 0;
+	}
+
+	/**
+	 * Gets the bit mask of the columns with a value, by column ordinal.
+	 *
+	 * @return the bit mask
+	 */
+	long getPresent() {
+		return present;
+	}
+
+	String getSymbol() {
+		return texts[QuoteColumn.SYMBOL.ordinal()];
+	}
+
+	String getType() {
+		return texts[QuoteColumn.TYPE.ordinal()];
+	}
+
+	/**
+	 * Gets the date of the quote.
+	 *
+	 * @return the date as an epoch day
+	 */
+	int getDay() {
+		return (int) times[QuoteColumn.DATE.ordinal()];
+	}
+
+	/**
+	 * Gets the last update time of the quote.
+	 *
+	 * @return the local date and time as epoch seconds
+	 */
+	long getLastUpdate() {
+		return times[QuoteColumn.LAST_UPDATE.ordinal()];
+	}
+
+	double getNumber(QuoteColumn column) {
+		return numbers[column.ordinal()];
+	}
+
+	void setNumber(QuoteColumn column, double value) {
+		numbers[column.ordinal()] = value;
+		present |= 1L << column.ordinal();
+		return;
+	}
+
+	/**
+	 * Sets the value of a date or timestamp column.
+	 *
+	 * @param column the column
+	 * @param value  the epoch day of a date, or the local epoch seconds of a
+	 *               timestamp
+	 */
+	void setTime(QuoteColumn column, long value) {
+		times[column.ordinal()] = value;
+		present |= 1L << column.ordinal();
+		return;
+	}
+
+	void setText(QuoteColumn column, String value) {
+		texts[column.ordinal()] = value;
+		present |= 1L << column.ordinal();
+		return;
+	}
+
+	/**
+	 * Gets the value of a column in the form written to a Money table.
+	 *
+	 * @param column the column
+	 * @return the value, or null if the column has no value
+	 */
+	Object getValue(QuoteColumn column) {
+		if (!has(column)) {
+			return null;
+		}
+		int i = column.ordinal();
+		switch (column.valueType) {
+		case NUMBER:
+			return numbers[i];
+		case DATE:
+			return LocalDate.ofEpochDay(times[i]).atStartOfDay();
+		case TIMESTAMP:
+			return toLocalDateTime(times[i]);
+		default:
+			return texts[i];
+		}
+	}
+
+	/**
+	 * Converts local epoch seconds to a local date and time.
+	 *
+	 * @param epochSecond the local epoch seconds
+	 * @return the local date and time
+	 */
+	static LocalDateTime toLocalDateTime(long epochSecond) {
+		return LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC);
+	}
+
+	/**
+	 * Converts a local date and time to local epoch seconds.
+	 *
+	 * @param dateTime the local date and time
+	 * @return the local epoch seconds
+	 */
+	static long toEpochSecond(LocalDateTime dateTime) {
+		return dateTime.toEpochSecond(ZoneOffset.UTC);
+	}
+}
\ No newline at end of file
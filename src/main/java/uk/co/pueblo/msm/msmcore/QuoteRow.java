@@ -0,0 +1,148 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A reusable quote row read from a {@link QuoteSource}. The row holds its
+ * values in an array indexed by column, with the column names shared by every
+ * row of the source, and is overwritten by each call to
+ * {@link QuoteSource#next()}. Use {@link #copy()} to keep a row.
+ */
+public final class QuoteRow extends AbstractMap<String, Object> {
+
+	// Instance variables
+	private final Map<String, Integer> columns = new HashMap<>();
+	private String[] names = new String[16];
+	private Object[] values = new Object[16];
+	private int count = 0; // number of columns
+	private int size = 0; // number of values present
+
+	QuoteRow() {
+	}
+
+	/**
+	 * Gets the index of a column, adding the column if it has not been seen
+	 * before.
+	 *
+	 * @param name the column name
+	 * @return the column index
+	 */
+	int addColumn(String name) {
+		Integer index = columns.get(name);
+		if (index != null) {
+			return index;
+		}
+		if (count == names.length) {
+			names = Arrays.copyOf(names, count * 2);
+			values = Arrays.copyOf(values, count * 2);
+		}
+		names[count] = name;
+		columns.put(name, count);
+		return count++;
+	}
+
+	int getColumnCount() {
+		return count;
+	}
+
+	String getColumnName(int index) {
+		return names[index];
+	}
+
+	void set(int index, Object value) {
+		if (values[index] == null) {
+			if (value != null) {
+				size++;
+			}
+		} else if (value == null) {
+			size--;
+		}
+		values[index] = value;
+		return;
+	}
+
+	void clear(int fromIndex) {
+		for (int i = fromIndex; i < count; i++) {
+			set(i, null);
+		}
+		return;
+	}
+
+	@Override
+	public void clear() {
+		clear(0);
+		return;
+	}
+
+	@Override
+	public Object get(Object key) {
+		Integer index = columns.get(key);
+		return index == null ? null : values[index];
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Copies the values present in this row.
+	 *
+	 * @return a new map holding the values
+	 */
+	public Map<String, Object> copy() {
+		return new HashMap<>(this);
+	}
+
+	@Override
+	public Set<Entry<String, Object>> entrySet() {
+		return new AbstractSet<>() {
+
+			@Override
+			public Iterator<Entry<String, Object>> iterator() {
+				return new Iterator<>() {
+					private int next = advance(0);
+
+					private int advance(int i) {
+						while (i < count && values[i] == null) {
+							i++;
+						}
+						return i;
+					}
+
+					@Override
+					public boolean hasNext() {
+						return next < count;
+					}
+
+					@Override
+					public Entry<String, Object> next() {
+						if (next >= count) {
+							throw new NoSuchElementException();
+						}
+						Entry<String, Object> entry = new SimpleImmutableEntry<>(names[next], values[next]);
+						next = advance(next + 1);
+						return entry;
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+		};
+	}
+}
@@ -0,0 +1,154 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A quote data schema compiled from instrument properties. For each quote type
+ * the schema holds the required columns, in property order, followed by the
+ * optional columns for that quote type, each with its value type and default
+ * value.
+ */
+class QuoteSchema {
+
+	// Constants
+	private static final String COLUMN_PREFIX = "column.";
+
+	// Instance variables
+	private final Map<String, QuoteType> quoteTypes;
+	private final Properties props;
+
+	// Quote column value types
+	enum ValueType {
+		TEXT, SYMBOL, DATE, TIMESTAMP, NUMBER;
+
+		static ValueType forColumn(String column) {
+			if (column.equals("xSymbol")) {
+				return SYMBOL;
+			} else if (column.charAt(0) == 'x') {
+				return TEXT; // msmquote internal values
+			} else if (column.equals("dt")) {
+				return DATE;
+			} else if (column.equals("dtLastUpdate")) {
+				return TIMESTAMP;
+			}
+			return NUMBER;
+		}
+	}
+
+	/**
+	 * A quote column.
+	 */
+	static class Field {
+
+		// Instance variables
+		final String name;
+		final QuoteColumn column;
+		final boolean required;
+		final double defaultValue; // MSM value, or NaN if none
+		final String defaultText;
+
+		private Field(String name, boolean required, String defaultText) {
+			this.name = name;
+			this.column = QuoteColumn.forName(name);
+			if (column == null) {
+				throw new IllegalArgumentException("Unknown quote column: " + name);
+			}
+			if (defaultText != null && column.valueType != ValueType.NUMBER) {
+				throw new IllegalArgumentException("Default value is not allowed for quote column: " + name);
+			}
+			this.required = required;
+			this.defaultText = defaultText;
+			this.defaultValue = defaultText == null ? Double.NaN : Double.parseDouble(defaultText);
+		}
+
+		boolean hasDefault() {
+			return defaultText != null;
+		}
+	}
+
+	/**
+	 * The columns of a quote type.
+	 */
+	static class QuoteType {
+
+		// Instance variables
+		final String name;
+		final Field[] fields;
+
+		private QuoteType(String name, Field[] fields) {
+			this.name = name;
+			this.fields = fields;
+		}
+	}
+
+	private QuoteSchema(Map<String, QuoteType> quoteTypes, Properties props) {
+		this.quoteTypes = quoteTypes;
+		this.props = props;
+	}
+
+	/**
+	 * Compiles a quote data schema from instrument properties. Required columns
+	 * are defined by {@code column.<n>} properties and the optional columns of
+	 * each quote type by {@code column.<type>.<n>} properties, with an optional
+	 * default value following the column name.
+	 *
+	 * @param props the instrument properties
+	 * @return the schema
+	 */
+	static QuoteSchema compile(Properties props) {
+		// Required columns
+		List<Field> requiredFields = new ArrayList<>();
+		String prop;
+		int index = 1;
+		while ((prop = props.getProperty(COLUMN_PREFIX + index++)) != null) {
+			requiredFields.add(new Field(prop.trim(), true, null));
+		}
+
+		// Optional columns for each quote type
+		Map<String, QuoteType> quoteTypes = new HashMap<>();
+		for (String key : props.stringPropertyNames()) {
+			int i = key.lastIndexOf('.');
+			if (!key.startsWith(COLUMN_PREFIX) || i <= COLUMN_PREFIX.length()) {
+				continue;
+			}
+			String quoteType = key.substring(COLUMN_PREFIX.length(), i);
+			if (quoteTypes.containsKey(quoteType)) {
+				continue;
+			}
+			List<Field> fields = new ArrayList<>(requiredFields);
+			String columnSet = COLUMN_PREFIX + quoteType + '.';
+			index = 1;
+			while ((prop = props.getProperty(columnSet + index++)) != null) {
+				String propArray[] = prop.split(",");
+				fields.add(new Field(propArray[0].trim(), false, propArray.length == 2 ? propArray[1].trim() : null));
+			}
+			quoteTypes.put(quoteType, new QuoteType(quoteType, fields.toArray(new Field[0])));
+		}
+		return new QuoteSchema(Collections.unmodifiableMap(quoteTypes), props);
+	}
+
+	/**
+	 * Gets the columns of a quote type.
+	 *
+	 * @param quoteType the name of the quote type
+	 * @return the quote type columns, or null if the quote type is not defined
+	 */
+	QuoteType get(String quoteType) {
+		return quoteTypes.get(quoteType);
+	}
+
+	/**
+	 * Gets a quote parameter that is not a column definition.
+	 *
+	 * @param key the parameter name
+	 * @return the parameter value, or null if not defined
+	 */
+	String getProperty(String key) {
+		return props.getProperty(key);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,265 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A streaming source of quote rows. The source reads one row at a time into a
+ * single reusable {@link QuoteRow}, so a feed of any size can be applied with
+ * {@link MsmInstrument#update(QuoteSource)} in constant memory.
+ */
+public abstract class QuoteSource implements Closeable {
+
+	// Constants
+	private static final int BUFFER_SIZE = 65536;
+
+	// Instance variables
+	private final Reader reader;
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	final QuoteRow row = new QuoteRow();
+	int line = 1;
+
+	/**
+	 * @param is the UTF-8 input stream to read quote rows from
+	 */
+	QuoteSource(InputStream is) {
+		reader = new InputStreamReader(is, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param path the UTF-8 file to read quote rows from, which is memory-mapped
+	 * @throws IOException
+	 */
+	QuoteSource(Path path) throws IOException {
+		reader = new MappedReader(path);
+	}
+
+	/**
+	 * Reads the next quote row.
+	 *
+	 * @return the quote row, which is reused by the next call, or null at the end
+	 *         of the source
+	 * @throws IOException
+	 */
+	public abstract QuoteRow next() throws IOException;
+
+	/**
+	 * Gets an iterator over the remaining quote rows. I/O errors are thrown as
+	 * {@link UncheckedIOException}.
+	 *
+	 * @return the iterator
+	 */
+	public Iterator<QuoteRow> iterator() {
+		return new Iterator<>() {
+			private QuoteRow nextRow;
+			private boolean fetched = false;
+
+			@Override
+			public boolean hasNext() {
+				if (!fetched) {
+					try {
+						nextRow = QuoteSource.this.next();
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					fetched = true;
+				}
+				return nextRow != null;
+			}
+
+			@Override
+			public QuoteRow next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				fetched = false;
+				return nextRow;
+			}
+		};
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+		return;
+	}
+
+	/**
+	 * Reads the next character.
+	 *
+	 * @return the character, or -1 at the end of the source
+	 * @throws IOException
+	 */
+	final int read() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		char c = buffer[pos++];
+		if (c == '\n') {
+			line++;
+		}
+		return c;
+	}
+
+	/**
+	 * Gets the next character without reading it.
+	 *
+	 * @return the character, or -1 at the end of the source
+	 * @throws IOException
+	 */
+	final int peek() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		return buffer[pos];
+	}
+
+	private boolean fill() throws IOException {
+		int n;
+		while ((n = reader.read(buffer, 0, buffer.length)) == 0) {
+			// Keep reading
+		}
+		if (n < 0) {
+			return false;
+		}
+		pos = 0;
+		limit = n;
+		return true;
+	}
+
+	IOException malformed(String message) {
+		return new IOException("Malformed quote data at line " + line + ": " + message);
+	}
+
+	/**
+	 * Converts a text value to the type expected for its column. Values of
+	 * msmquote internal columns are always text, otherwise numeric text is
+	 * converted to a double.
+	 *
+	 * @param column the column name
+	 * @param text   the text value
+	 * @return the value
+	 */
+	static Object toValue(String column, String text) {
+		if (column.charAt(0) != 'x' && isNumeric(text)) {
+			return Double.parseDouble(text);
+		}
+		return text;
+	}
+
+	/**
+	 * Checks whether text is a decimal number, optionally signed and with an
+	 * exponent, that can be parsed without exception.
+	 *
+	 * @param text the text to check
+	 * @return true if the text is a number, otherwise false
+	 */
+	static boolean isNumeric(CharSequence text) {
+		int len = text.length();
+		int i = 0;
+		if (i < len && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+			i++;
+		}
+		int digits = 0;
+		while (i < len && isDigit(text.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < len && text.charAt(i) == '.') {
+			i++;
+			while (i < len && isDigit(text.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < len && (text.charAt(i) == 'e' || text.charAt(i) == 'E')) {
+			i++;
+			if (i < len && (text.charAt(i) == '-' || text.charAt(i) == '+')) {
+				i++;
+			}
+			int expDigits = 0;
+			while (i < len && isDigit(text.charAt(i))) {
+				i++;
+				expDigits++;
+			}
+			if (expDigits == 0) {
+				return false;
+			}
+		}
+		return i == len;
+	}
+
+	/**
+	 * Checks whether a character is an ASCII digit. Other Unicode digits are not
+	 * accepted by {@link Double#parseDouble(String)}.
+	 *
+	 * @param c the character to check
+	 * @return true if the character is 0 to 9, otherwise false
+	 */
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	/**
+	 * A reader that decodes a memory-mapped UTF-8 file.
+	 */
+	private static class MappedReader extends Reader {
+
+		// Instance variables
+		private final ByteBuffer bytes;
+		private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private boolean flushed = false;
+
+		MappedReader(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				if (channel.size() > Integer.MAX_VALUE) {
+					throw new IOException("File is too large to map: " + path);
+				}
+				bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			CharBuffer chars = CharBuffer.wrap(cbuf, off, len);
+			CoderResult cr = decoder.decode(bytes, chars, true);
+			if (cr.isError()) {
+				cr.throwException();
+			}
+			if (!bytes.hasRemaining() && !flushed && chars.position() == off) {
+				decoder.flush(chars);
+				flushed = true;
+			}
+			int n = chars.position() - off;
+			return n == 0 ? -1 : n;
+		}
+
+		@Override
+		public void close() {
+			return;
+		}
+	}
+}
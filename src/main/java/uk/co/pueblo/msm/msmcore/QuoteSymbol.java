@@ -0,0 +1,59 @@
+package uk.co.pueblo.msm.msmcore;
+
+/**
+ * A symbol to fetch quotes for, with its MSM country code and comment.
+ */
+public final class QuoteSymbol {
+
+	// Instance variables
+	private final String symbol;
+	private final String countryCode;
+	private final String comment;
+
+	QuoteSymbol(String symbol, String countryCode, String comment) {
+		this.symbol = symbol;
+		this.countryCode = countryCode;
+		this.comment = comment;
+	}
+
+	/**
+	 * Gets the symbol.
+	 *
+	 * @return the symbol
+	 */
+	public String getSymbol() {
+		return symbol;
+	}
+
+	/**
+	 * Gets the two-character country code.
+	 *
+	 * @return the country code, or null if not known
+	 */
+	public String getCountryCode() {
+		return countryCode;
+	}
+
+	/**
+	 * Gets the comment.
+	 *
+	 * @return the comment, or an empty string if none
+	 */
+	public String getComment() {
+		return comment;
+	}
+
+	/**
+	 * Gets the symbol, country code and comment as an array.
+	 *
+	 * @return the array
+	 */
+	public String[] toArray() {
+		return new String[] { symbol, countryCode, comment };
+	}
+
+	@Override
+	public String toString() {
+		return symbol;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,99 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.healthmarketscience.jackcess.Column;
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
+import com.healthmarketscience.jackcess.RowId;
+import com.healthmarketscience.jackcess.Table;
+
+/**
+ * A write-behind buffer of in-place updates to the rows of a table. The
+ * updated rows are held by row location as row arrays, in which
+ * {@link Column#KEEP_VALUE} marks a column that is not updated, so that
+ * repeated updates to the same row are coalesced. The rows are written to the
+ * table in one pass in row location order, which is the order of the table
+ * data pages.
+ */
+class RowChangeBuffer {
+
+	// Constants
+	private static final Logger LOGGER = LogManager.getLogger(RowChangeBuffer.class);
+
+	// Instance variables
+	private final Table table;
+	private final Map<RowId, Object[]> rows = new TreeMap<>();
+
+	RowChangeBuffer(Table table) {
+		this.table = table;
+	}
+
+	/**
+	 * Gets a buffered column value.
+	 *
+	 * @param rowId  the location of the row
+	 * @param column the column
+	 * @return the value as last updated, or {@link Column#KEEP_VALUE} if the
+	 *         column has no buffered update
+	 */
+	Object getValue(RowId rowId, Column column) {
+		Object[] row = rows.get(rowId);
+		return row == null ? Column.KEEP_VALUE : column.getRowValue(row);
+	}
+
+	/**
+	 * Buffers an update to a row, merging it with any earlier buffered update to
+	 * the same row. The row array is copied, so it may be reused by the caller.
+	 *
+	 * @param rowId the location of the row
+	 * @param row   the update row array
+	 * @return true if the update was merged with an earlier update to the row,
+	 *         otherwise false
+	 */
+	boolean put(RowId rowId, Object[] row) {
+		Object[] bufferedRow = rows.get(rowId);
+		if (bufferedRow == null) {
+			rows.put(rowId, row.clone());
+			return false;
+		}
+		for (int i = 0; i < row.length; i++) {
+			if (row[i] != Column.KEEP_VALUE) {
+				bufferedRow[i] = row[i];
+			}
+		}
+		return true;
+	}
+
+	int size() {
+		return rows.size();
+	}
+
+	/**
+	 * Writes the buffered rows to the table in row location order and empties the
+	 * buffer.
+	 *
+	 * @return the number of rows written
+	 * @throws IOException
+	 */
+	int flush() throws IOException {
+		int n = rows.size();
+		if (n > 0) {
+			Cursor cursor = CursorBuilder.createCursor(table);
+			for (Map.Entry<RowId, Object[]> entry : rows.entrySet()) {
+				if (!cursor.findRow(entry.getKey())) {
+					throw new IOException("Cannot find row in " + table.getName() + " table: " + entry.getKey());
+				}
+				cursor.updateCurrentRow(entry.getValue());
+			}
+			rows.clear();
+			LOGGER.debug("Flushed {} table change buffer: rows={}", table.getName(), n);
+		}
+		return n;
+	}
+}
\ No newline at end of file
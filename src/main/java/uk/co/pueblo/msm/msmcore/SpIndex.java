@@ -0,0 +1,307 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
+import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.RowId;
+import com.healthmarketscience.jackcess.Table;
+
+/**
+ * An in-memory index of the SP table. For each hsec the index holds the price
+ * dates as epoch days in ascending order, together with the hsp, the price
+ * source and the location of each row, so that a same-day or most recent
+ * earlier price can be found with a binary search instead of a table scan. The
+ * most recent price of each hsec is collected in the same pass.
+ */
+class SpIndex {
+
+	// Constants
+	private static final Logger LOGGER = LogManager.getLogger(SpIndex.class);
+	private static final List<String> INDEX_COLS = List.of("hsp", "hsec", "dt", "src", "dPrice");
+	private static final int INITIAL_CAPACITY = 8;
+
+	// Instance variables
+	private final Map<Integer, History> histories = new HashMap<>();
+	private final LatestPrices latestPrices = new LatestPrices();
+
+	/**
+	 * The price history of a single security, sorted by date. Rows with the same
+	 * date are held in the order they were added.
+	 */
+	static class History {
+
+		// Instance variables
+		private int size;
+		private int[] days = new int[INITIAL_CAPACITY];
+		private int[] hsps = new int[INITIAL_CAPACITY];
+		private int[] srcs = new int[INITIAL_CAPACITY];
+		private RowId[] rowIds = new RowId[INITIAL_CAPACITY];
+
+		int size() {
+			return size;
+		}
+
+		int day(int i) {
+			return days[i];
+		}
+
+		int hsp(int i) {
+			return hsps[i];
+		}
+
+		int src(int i) {
+			return srcs[i];
+		}
+
+		void setSrc(int i, int src) {
+			srcs[i] = src;
+			return;
+		}
+
+		/**
+		 * Gets the location of a row in the SP table.
+		 *
+		 * @param i the position of the row in this history
+		 * @return the row location, or null if the row has not yet been written to
+		 *         the SP table or has not been located since it was written
+		 */
+		RowId rowId(int i) {
+			return rowIds[i];
+		}
+
+		void setRowId(int i, RowId rowId) {
+			rowIds[i] = rowId;
+			return;
+		}
+
+		/**
+		 * Gets the position of the first row with a date on or after the given day.
+		 *
+		 * @param day the epoch day to search for
+		 * @return the position of the first row dated on or after the day, or the
+		 *         history size if there is none
+		 */
+		int lowerBound(int day) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (days[mid] < day) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Gets the position of the first row with a date after the given day.
+		 *
+		 * @param day the epoch day to search for
+		 * @return the position of the first row dated after the day, or the history
+		 *         size if there is none
+		 */
+		int upperBound(int day) {
+			int lo = 0;
+			int hi = size;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (days[mid] <= day) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		/**
+		 * Removes rows from this history, keeping the order of the other rows.
+		 *
+		 * @param removed the rows to remove, by position in this history
+		 */
+		void remove(boolean[] removed) {
+			int j = 0;
+			for (int i = 0; i < size; i++) {
+				if (!removed[i]) {
+					days[j] = days[i];
+					hsps[j] = hsps[i];
+					srcs[j] = srcs[i];
+					rowIds[j] = rowIds[i];
+					j++;
+				}
+			}
+			Arrays.fill(rowIds, j, size, null);
+			size = j;
+			return;
+		}
+
+		private void append(int day, int hsp, int src, RowId rowId) {
+			ensureCapacity();
+			days[size] = day;
+			hsps[size] = hsp;
+			srcs[size] = src;
+			rowIds[size] = rowId;
+			size++;
+			return;
+		}
+
+		private void add(int day, int hsp, int src, RowId rowId) {
+			ensureCapacity();
+			// New prices are usually the latest, so this is normally an append
+			int i = size;
+			while (i > 0 && days[i - 1] > day) {
+				i--;
+			}
+			int n = size - i;
+			if (n > 0) {
+				System.arraycopy(days, i, days, i + 1, n);
+				System.arraycopy(hsps, i, hsps, i + 1, n);
+				System.arraycopy(srcs, i, srcs, i + 1, n);
+				System.arraycopy(rowIds, i, rowIds, i + 1, n);
+			}
+			days[i] = day;
+			hsps[i] = hsp;
+			srcs[i] = src;
+			rowIds[i] = rowId;
+			size++;
+			return;
+		}
+
+		private void ensureCapacity() {
+			if (size == days.length) {
+				int capacity = size * 2;
+				days = Arrays.copyOf(days, capacity);
+				hsps = Arrays.copyOf(hsps, capacity);
+				srcs = Arrays.copyOf(srcs, capacity);
+				rowIds = Arrays.copyOf(rowIds, capacity);
+			}
+			return;
+		}
+
+		private void sort() {
+			// Sort on a composite key of date and table position
+			long[] keys = new long[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = ((long) days[i] << 32) | i;
+			}
+			Arrays.sort(keys);
+			int[] sortedDays = new int[days.length];
+			int[] sortedHsps = new int[days.length];
+			int[] sortedSrcs = new int[days.length];
+			RowId[] sortedRowIds = new RowId[days.length];
+			for (int i = 0; i < size; i++) {
+				int j = (int) keys[i];
+				sortedDays[i] = days[j];
+				sortedHsps[i] = hsps[j];
+				sortedSrcs[i] = srcs[j];
+				sortedRowIds[i] = rowIds[j];
+			}
+			days = sortedDays;
+			hsps = sortedHsps;
+			srcs = sortedSrcs;
+			rowIds = sortedRowIds;
+			return;
+		}
+	}
+
+	/**
+	 * Builds the index with a single pass over the SP table.
+	 *
+	 * @param spTable the SP table
+	 * @return the index
+	 * @throws IOException
+	 */
+	static SpIndex build(Table spTable) throws IOException {
+		SpIndex spIndex = new SpIndex();
+		Cursor spCursor = CursorBuilder.createCursor(spTable);
+		Row row;
+		int rows = 0;
+		while ((row = spCursor.getNextRow(INDEX_COLS)) != null) {
+			LocalDateTime dt = (LocalDateTime) row.get("dt");
+			if (dt == null) {
+				continue;
+			}
+			int hsec = (int) row.get("hsec");
+			int day = toEpochDay(dt);
+			History history = spIndex.histories.computeIfAbsent(hsec, k -> new History());
+			history.append(day, (int) row.get("hsp"), (int) row.get("src"), row.getId());
+			spIndex.latestPrices.add(hsec, day, toPrice(row.get("dPrice")), (int) row.get("src"), (int) row.get("hsp"));
+			rows++;
+		}
+		for (History history : spIndex.histories.values()) {
+			history.sort();
+		}
+		LOGGER.debug("Built SP table index: securities={}, rows={}", spIndex.histories.size(), rows);
+		return spIndex;
+	}
+
+	/**
+	 * Gets the price history for a security.
+	 *
+	 * @param hsec the hsec of the security
+	 * @return the price history, or null if the security has no prices
+	 */
+	History get(int hsec) {
+		return histories.get(hsec);
+	}
+
+	/**
+	 * Gets the hsecs that have a price history.
+	 *
+	 * @return the hsecs in ascending order
+	 */
+	int[] getHsecs() {
+		int[] hsecs = new int[histories.size()];
+		int i = 0;
+		for (int hsec : histories.keySet()) {
+			hsecs[i++] = hsec;
+		}
+		Arrays.sort(hsecs);
+		return hsecs;
+	}
+
+	/**
+	 * Gets the most recent price of each hsec.
+	 *
+	 * @return the most recent prices
+	 */
+	LatestPrices getLatestPrices() {
+		return latestPrices;
+	}
+
+	/**
+	 * Adds a row to the index.
+	 *
+	 * @param hsec  the hsec of the row
+	 * @param day   the date of the row as an epoch day
+	 * @param hsp   the hsp of the row
+	 * @param src   the price source of the row
+	 * @param price the price of the row, or NaN if none
+	 * @param rowId the location of the row, or null if not yet known
+	 */
+	void add(int hsec, int day, int hsp, int src, double price, RowId rowId) {
+		histories.computeIfAbsent(hsec, k -> new History()).add(day, hsp, src, rowId);
+		latestPrices.add(hsec, day, price, src, hsp);
+		return;
+	}
+
+	static int toEpochDay(LocalDateTime dt) {
+		return (int) dt.toLocalDate().toEpochDay();
+	}
+
+	static double toPrice(Object value) {
+		return value instanceof Number ? ((Number) value).doubleValue() : Double.NaN;
+	}
+}
\ No newline at end of file
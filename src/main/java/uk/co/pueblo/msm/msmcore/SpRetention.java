@@ -0,0 +1,82 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.time.LocalDate;
+import java.time.Period;
+
+/**
+ * The retention rules for thinning the price history in the SP table. Prices
+ * within the daily period are all kept. Older prices are kept at one price per
+ * week, the weekly close, back to the end of the weekly period, and at one
+ * price per calendar month, the monthly close, before that. Weeks start on a
+ * Monday.
+ *
+ * @see MsmSecurity#compactPriceHistory(SpRetention, boolean)
+ */
+public final class SpRetention {
+
+	// Instance variables
+	private final Period dailyPeriod;
+	private final Period weeklyPeriod;
+
+	/**
+	 * @param dailyPeriod  the period before today for which every price is kept
+	 * @param weeklyPeriod the period before today for which weekly closes are
+	 *                     kept, which should be no shorter than the daily period
+	 */
+	public SpRetention(Period dailyPeriod, Period weeklyPeriod) {
+		if (dailyPeriod.isNegative() || weeklyPeriod.isNegative()) {
+			throw new IllegalArgumentException("Retention periods must not be negative");
+		}
+		this.dailyPeriod = dailyPeriod;
+		this.weeklyPeriod = weeklyPeriod;
+	}
+
+	/**
+	 * Creates retention rules that keep every price for a number of years, then
+	 * weekly closes up to a greater number of years, then monthly closes.
+	 *
+	 * @param dailyYears  the number of years for which every price is kept
+	 * @param weeklyYears the number of years for which weekly closes are kept
+	 * @return the retention rules
+	 */
+	public static SpRetention ofYears(int dailyYears, int weeklyYears) {
+		return new SpRetention(Period.ofYears(dailyYears), Period.ofYears(weeklyYears));
+	}
+
+	/**
+	 * Gets the first day for which every price is kept.
+	 *
+	 * @param today the date the rules are applied
+	 * @return the epoch day
+	 */
+	int getDailyCutoff(LocalDate today) {
+		return (int) today.minus(dailyPeriod).toEpochDay();
+	}
+
+	/**
+	 * Gets the first day for which weekly closes are kept. The day is never
+	 * after the daily cutoff.
+	 *
+	 * @param today the date the rules are applied
+	 * @return the epoch day
+	 */
+	int getWeeklyCutoff(LocalDate today) {
+		return Math.min((int) today.minus(weeklyPeriod).toEpochDay(), getDailyCutoff(today));
+	}
+
+	/**
+	 * Gets the week or month of a price before the daily cutoff, of which only
+	 * the last price is kept.
+	 *
+	 * @param day          the epoch day of the price
+	 * @param weeklyCutoff the first day for which weekly closes are kept
+	 * @return a key that is equal for prices in the same week or month
+	 */
+	static long bucket(int day, int weeklyCutoff) {
+		if (day >= weeklyCutoff) {
+			return (long) Math.floorDiv(day + 3, 7) << 1; // epoch day 0 is a Thursday
+		}
+		LocalDate date = LocalDate.ofEpochDay(day);
+		return ((date.getYear() * 12L + date.getMonthValue() - 1) << 1) | 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.healthmarketscience.jackcess.Cursor;
+import com.healthmarketscience.jackcess.CursorBuilder;
+import com.healthmarketscience.jackcess.Row;
+import com.healthmarketscience.jackcess.RowId;
+import com.healthmarketscience.jackcess.Table;
+
+/**
+ * An in-memory index of the SEC table by symbol. Each symbol is held as
+ * stored in the SEC table and in the normalised form used for quote symbols,
+ * so that a quote can be matched to its security and SEC table row without a
+ * table scan.
+ */
+class SymbolIndex {
+
+	// Constants
+	private static final Logger LOGGER = LogManager.getLogger(SymbolIndex.class);
+	private static final List<String> INDEX_COLS = List.of("hsec", "szSymbol");
+
+	// Instance variables
+	private final Map<String, Entry> entries = new HashMap<>();
+
+	/**
+	 * The hsec and SEC table row location of a symbol.
+	 */
+	static class Entry {
+
+		// Instance variables
+		final int hsec;
+		final RowId rowId;
+
+		private Entry(int hsec, RowId rowId) {
+			this.hsec = hsec;
+			this.rowId = rowId;
+		}
+	}
+
+	/**
+	 * Builds the index with a single pass over the SEC table in primary key order,
+	 * so that a symbol held by more than one security resolves to the same row as
+	 * a search of the SEC table would. A symbol stored in the SEC table takes
+	 * precedence over the same text as the normalised form of another symbol.
+	 *
+	 * @param secTable the SEC table
+	 * @return the index
+	 * @throws IOException
+	 */
+	static SymbolIndex build(Table secTable) throws IOException {
+		SymbolIndex symbolIndex = new SymbolIndex();
+		Map<String, Entry> aliases = new HashMap<>(); // normalised symbols, added after all of the stored symbols
+		Cursor secCursor = CursorBuilder.createCursor(secTable.getPrimaryKeyIndex());
+		Row row;
+		while ((row = secCursor.getNextRow(INDEX_COLS)) != null) {
+			Object symbol = row.get("szSymbol");
+			if (symbol == null) {
+				continue;
+			}
+			Entry entry = new Entry((int) row.get("hsec"), row.getId());
+			symbolIndex.entries.putIfAbsent(symbol.toString(), entry);
+			aliases.putIfAbsent(MsmInstrument.normaliseSymbol(symbol.toString()), entry);
+		}
+		aliases.forEach(symbolIndex.entries::putIfAbsent);
+		LOGGER.debug("Built SEC table symbol index: symbols={}", symbolIndex.entries.size());
+		return symbolIndex;
+	}
+
+	/**
+	 * Gets the index entry for a symbol.
+	 *
+	 * @param symbol the normalised symbol
+	 * @return the index entry, or null if the symbol is not in the SEC table
+	 */
+	Entry get(String symbol) {
+		return entries.get(symbol);
+	}
+}
\ No newline at end of file
@@ -0,0 +1,146 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * A binary journal of quote update decisions, with one fixed-length record for
+ * each quote applied to the Money file. Records are collected in a direct
+ * buffer and written to the journal file through a file channel when the
+ * buffer is full, so journalling a quote costs no formatting and no
+ * allocation. The journal is read with {@link UpdateJournalReader}.
+ * <p>
+ * The file starts with an 8-byte header: the magic number, the format version
+ * and the record length. Each record is little-endian, with the layout:
+ *
+ * <pre>
+ * offset  size  field
+ *      0     1  instrument: 1 = security, 2 = currency
+ *      1     1  update status ordinal
+ *      2     2  reserved
+ *      4     4  quote date as an epoch day, or Integer.MIN_VALUE if none
+ *      8     8  record time in epoch milliseconds
+ *     16     8  update time in nanoseconds
+ *     24     4  hsec, or from hcrnc of a currency update
+ *     28     4  hsp of the SP table row written, or to hcrnc; -1 if none
+ *     32     8  previous price or exchange rate, or NaN if none
+ *     40     8  new price or exchange rate, or NaN if none
+ *     48    16  symbol, ISO-8859-1, padded with zero bytes
+ * </pre>
+ *
+ * A journal may be shared by several instruments, and is written on the thread
+ * that applies the quotes.
+ */
+public final class UpdateJournal implements Closeable {
+
+	// Constants
+	static final int MAGIC = 0x4A4D534D; // "MSMJ" in little-endian order
+	static final short VERSION = 1;
+	static final int HEADER_SIZE = 8;
+	static final int RECORD_SIZE = 64;
+	static final int SYMBOL_SIZE = 16;
+	static final byte SECURITY = 1;
+	static final byte CURRENCY = 2;
+	static final int NO_DAY = Integer.MIN_VALUE;
+	private static final int BUFFER_RECORDS = 1024;
+
+	// Instance variables
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_SIZE * BUFFER_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+	private long recordCount = 0;
+
+	/**
+	 * Creates a journal file, replacing any existing file.
+	 *
+	 * @param file the journal file
+	 * @throws IOException
+	 */
+	public UpdateJournal(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		buffer.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE);
+	}
+
+	/**
+	 * Adds a record to the journal.
+	 *
+	 * @param instrument   the instrument, {@link #SECURITY} or {@link #CURRENCY}
+	 * @param symbol       the quote symbol, or null if none
+	 * @param day          the quote date as an epoch day, or {@link #NO_DAY}
+	 * @param handle       the hsec, or the from hcrnc
+	 * @param targetHandle the hsp of the SP table row written, or the to hcrnc
+	 * @param oldValue     the previous price or exchange rate
+	 * @param newValue     the new price or exchange rate
+	 * @param status       the update status, or null if the update failed
+	 * @param nanos        the update time in nanoseconds
+	 * @throws IOException
+	 */
+	synchronized void write(byte instrument, String symbol, int day, int handle, int targetHandle, double oldValue, double newValue, UpdateStatus status, long nanos) throws IOException {
+		if (buffer.remaining() < RECORD_SIZE) {
+			flush();
+		}
+		buffer.put(instrument);
+		buffer.put(status == null ? -1 : (byte) status.ordinal());
+		buffer.putShort((short) 0);
+		buffer.putInt(day);
+		buffer.putLong(System.currentTimeMillis());
+		buffer.putLong(nanos);
+		buffer.putInt(handle);
+		buffer.putInt(targetHandle);
+		buffer.putDouble(oldValue);
+		buffer.putDouble(newValue);
+		int len = symbol == null ? 0 : Math.min(symbol.length(), SYMBOL_SIZE);
+		for (int i = 0; i < SYMBOL_SIZE; i++) {
+			char c = i < len ? symbol.charAt(i) : 0;
+			buffer.put(c > 0xFF ? (byte) '?' : (byte) c);
+		}
+		recordCount++;
+		return;
+	}
+
+	/**
+	 * Writes the buffered records to the journal file.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+		return;
+	}
+
+	/**
+	 * Gets the number of records added to the journal.
+	 *
+	 * @return the number of records
+	 */
+	public synchronized long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Writes the buffered records and closes the journal file.
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen()) {
+			try {
+				flush();
+			} finally {
+				channel.close();
+			}
+		}
+		return;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,236 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * Reads the records of an {@link UpdateJournal} file in order. The reader is
+ * positioned on one record at a time, whose fields are returned by the getter
+ * methods. The {@link #main(String[])} method dumps journal files as text.
+ */
+public final class UpdateJournalReader implements Closeable {
+
+	// Constants
+	private static final int BUFFER_RECORDS = 1024;
+	private static final UpdateStatus[] STATUSES = UpdateStatus.values();
+
+	// Instance variables
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(UpdateJournal.RECORD_SIZE * BUFFER_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+	private final byte[] symbolBytes = new byte[UpdateJournal.SYMBOL_SIZE];
+	private int position = -1; // position of the current record in the buffer
+
+	/**
+	 * Opens a journal file.
+	 *
+	 * @param file the journal file
+	 * @throws IOException if the file cannot be read or is not a journal file
+	 */
+	public UpdateJournalReader(Path file) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(UpdateJournal.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining()) {
+				if (channel.read(header) < 0) {
+					throw new EOFException("Update journal header is incomplete: " + file);
+				}
+			}
+			header.flip();
+			if (header.getInt() != UpdateJournal.MAGIC) {
+				throw new IOException("Not an update journal: " + file);
+			}
+			short version = header.getShort();
+			short recordSize = header.getShort();
+			if (version != UpdateJournal.VERSION || recordSize != UpdateJournal.RECORD_SIZE) {
+				throw new IOException("Unsupported update journal version: version=" + version + ", record size=" + recordSize);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Moves to the next record.
+	 *
+	 * @return true if there is a next record, or false at the end of the journal
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		if (position >= 0) {
+			buffer.position(position + UpdateJournal.RECORD_SIZE);
+		}
+		if (buffer.remaining() < UpdateJournal.RECORD_SIZE) {
+			buffer.compact();
+			while (buffer.position() < UpdateJournal.RECORD_SIZE && channel.read(buffer) >= 0) {
+				// read until at least one record is buffered
+			}
+			buffer.flip();
+			if (buffer.remaining() < UpdateJournal.RECORD_SIZE) {
+				position = -1;
+				return false; // end of journal, ignoring any incomplete record
+			}
+		}
+		position = buffer.position();
+		return true;
+	}
+
+	/**
+	 * Gets the instrument of the current record.
+	 *
+	 * @return {@code SECURITY} or {@code CURRENCY}
+	 */
+	public String getInstrument() {
+		return buffer.get(position) == UpdateJournal.CURRENCY ? "CURRENCY" : "SECURITY";
+	}
+
+	/**
+	 * Gets the update status of the current record.
+	 *
+	 * @return the update status, or null if the update failed
+	 */
+	public UpdateStatus getStatus() {
+		int ordinal = buffer.get(position + 1);
+		return ordinal >= 0 && ordinal < STATUSES.length ? STATUSES[ordinal] : null;
+	}
+
+	/**
+	 * Gets the quote date of the current record.
+	 *
+	 * @return the quote date, or null if none
+	 */
+	public LocalDate getDate() {
+		int day = buffer.getInt(position + 4);
+		return day == UpdateJournal.NO_DAY ? null : LocalDate.ofEpochDay(day);
+	}
+
+	/**
+	 * Gets the time that the current record was written.
+	 *
+	 * @return the time
+	 */
+	public Instant getTime() {
+		return Instant.ofEpochMilli(buffer.getLong(position + 8));
+	}
+
+	/**
+	 * Gets the time taken by the update of the current record.
+	 *
+	 * @return the update time in nanoseconds
+	 */
+	public long getNanos() {
+		return buffer.getLong(position + 16);
+	}
+
+	/**
+	 * Gets the hsec of a security update, or the from hcrnc of a currency update.
+	 *
+	 * @return the handle
+	 */
+	public int getHandle() {
+		return buffer.getInt(position + 24);
+	}
+
+	/**
+	 * Gets the hsp of the SP table row written by a security update, or the to
+	 * hcrnc of a currency update.
+	 *
+	 * @return the handle, or -1 if none
+	 */
+	public int getTargetHandle() {
+		return buffer.getInt(position + 28);
+	}
+
+	/**
+	 * Gets the previous price or exchange rate.
+	 *
+	 * @return the previous value, or NaN if none
+	 */
+	public double getOldValue() {
+		return buffer.getDouble(position + 32);
+	}
+
+	/**
+	 * Gets the new price or exchange rate.
+	 *
+	 * @return the new value, or NaN if none
+	 */
+	public double getNewValue() {
+		return buffer.getDouble(position + 40);
+	}
+
+	/**
+	 * Gets the quote symbol of the current record.
+	 *
+	 * @return the symbol, or an empty string if none
+	 */
+	public String getSymbol() {
+		int len = 0;
+		for (int i = 0; i < UpdateJournal.SYMBOL_SIZE; i++) {
+			byte b = buffer.get(position + 48 + i);
+			if (b == 0) {
+				break;
+			}
+			symbolBytes[len++] = b;
+		}
+		return new String(symbolBytes, 0, len, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Formats the current record as a line of text.
+	 *
+	 * @return the formatted record
+	 */
+	public String format() {
+		UpdateStatus status = getStatus();
+		LocalDate date = getDate();
+		return getTime() + " " + getInstrument() + " " + getSymbol() + " status=" + (status == null ? "FAILED" : status.name()) + ", date=" + (date == null ? "" : date) + ", handle=" + getHandle()
+				+ ", target=" + getTargetHandle() + ", old=" + getOldValue() + ", new=" + getNewValue() + ", nanos=" + getNanos();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		return;
+	}
+
+	/**
+	 * Dumps update journal files to standard output, one line for each record.
+	 *
+	 * @param args the journal file names
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: UpdateJournalReader <journal file>...");
+			System.exit(2);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		for (String fileName : args) {
+			try (UpdateJournalReader reader = new UpdateJournalReader(Paths.get(fileName))) {
+				while (reader.next()) {
+					out.write(reader.format());
+					out.write(System.lineSeparator());
+				}
+			}
+		}
+		out.flush();
+		return;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.pueblo.msm.msmcore.MsmInstrument.UpdateStatus;
+
+/**
+ * The aggregate result of a batch of quote updates. The result may be updated
+ * from more than one thread while quote rows are validated in parallel.
+ */
+public class UpdateResult {
+
+	// Constants
+	static final Set<UpdateStatus> UPDATED_SET = EnumSet.of(UpdateStatus.OK, UpdateStatus.MISSING_OPTIONAL, UpdateStatus.INVALID_OPTIONAL, UpdateStatus.NEW_STALE);
+
+	// Instance variables
+	private final Map<String, int[]> counts = new LinkedHashMap<>();
+	private final List<String> errors = new ArrayList<>();
+
+	synchronized void inc(String quoteType, UpdateStatus updateStatus) {
+		counts.computeIfAbsent(quoteType, k -> new int[UpdateStatus.values().length])[updateStatus.ordinal()]++;
+		return;
+	}
+
+	synchronized void addError(String message) {
+		errors.add(message);
+		return;
+	}
+
+	/**
+	 * Adds the counts and error messages of another result to this result.
+	 *
+	 * @param other the result to add
+	 */
+	void add(UpdateResult other) {
+		Map<String, int[]> otherCounts = new LinkedHashMap<>();
+		List<String> otherErrors;
+		synchronized (other) {
+			other.counts.forEach((quoteType, count) -> otherCounts.put(quoteType, count.clone()));
+			otherErrors = new ArrayList<>(other.errors);
+		}
+		synchronized (this) {
+			otherCounts.forEach((quoteType, count) -> {
+				int[] total = counts.computeIfAbsent(quoteType, k -> new int[UpdateStatus.values().length]);
+				for (int i = 0; i < total.length; i++) {
+					total[i] += count[i];
+				}
+			});
+			errors.addAll(otherErrors);
+		}
+		return;
+	}
+
+	/**
+	 * Gets the quote types in this result.
+	 *
+	 * @return the quote types
+	 */
+	public synchronized Set<String> getQuoteTypes() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(counts.keySet()));
+	}
+
+	/**
+	 * Gets the number of quotes of a quote type with an update status.
+	 *
+	 * @param quoteType    the quote type
+	 * @param updateStatus the update status
+	 * @return the number of quotes
+	 */
+	public synchronized int getCount(String quoteType, UpdateStatus updateStatus) {
+		int[] count = counts.get(quoteType);
+		return count == null ? 0 : count[updateStatus.ordinal()];
+	}
+
+	/**
+	 * Gets the number of quotes of all quote types with an update status.
+	 *
+	 * @param updateStatus the update status
+	 * @return the number of quotes
+	 */
+	public synchronized int getCount(UpdateStatus updateStatus) {
+		int total = 0;
+		for (int[] count : counts.values()) {
+			total += count[updateStatus.ordinal()];
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the number of quotes that were applied to the Money file.
+	 *
+	 * @return the number of quotes
+	 */
+	public int getUpdated() {
+		int updated = 0;
+		for (UpdateStatus updateStatus : UPDATED_SET) {
+			updated += getCount(updateStatus);
+		}
+		return updated;
+	}
+
+	/**
+	 * Gets the total number of quotes in this result.
+	 *
+	 * @return the number of quotes
+	 */
+	public int getTotal() {
+		int total = 0;
+		for (UpdateStatus updateStatus : UpdateStatus.values()) {
+			total += getCount(updateStatus);
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the messages for the quotes that could not be applied.
+	 *
+	 * @return the error messages, in the order the quotes were processed
+	 */
+	public synchronized List<String> getErrors() {
+		return Collections.unmodifiableList(new ArrayList<>(errors));
+	}
+
+	/**
+	 * Gets the update status with the highest exit code in this result.
+	 *
+	 * @return the final update status
+	 */
+	public UpdateStatus getFinalStatus() {
+		UpdateStatus finalStatus = UpdateStatus.OK;
+		for (UpdateStatus updateStatus : UpdateStatus.values()) {
+			if (updateStatus.exitCode > finalStatus.exitCode && getCount(updateStatus) > 0) {
+				finalStatus = updateStatus;
+			}
+		}
+		return finalStatus;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,284 @@
+package uk.co.pueblo.msm.msmcore;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.zone.ZoneOffsetTransition;
+import java.time.zone.ZoneRules;
+
+/**
+ * Converts quote values to MSM date and time values, held as epoch days and
+ * local epoch seconds. ISO dates and instants are parsed by hand, without
+ * regular expressions or exceptions, and the local time of an instant is found
+ * from a cached zone offset that is valid until the next offset transition of
+ * the zone. Invalid input is reported by an {@link #INVALID} return value.
+ */
+class ValueConverter {
+
+	// Constants
+	private static final int DATE_LEN = 10; // length of YYYY-MM-DD
+	private static final int SECONDS_PER_DAY = 86400;
+	private static final long MIN_EPOCH_SECOND = -62167219200L; // 0000-01-01T00:00:00Z
+	private static final long MAX_EPOCH_SECOND = 253402300799L; // 9999-12-31T23:59:59Z
+	static final long INVALID = Long.MIN_VALUE;
+
+	// Instance variables
+	private final ZoneRules zoneRules;
+	private volatile OffsetWindow window; // zone offset of the last converted instant
+
+	/**
+	 * A zone offset and the range of epoch seconds over which it applies.
+	 */
+	private static class OffsetWindow {
+
+		// Instance variables
+		final long from; // inclusive
+		final long until; // exclusive
+		final int offsetSeconds;
+
+		OffsetWindow(long from, long until, int offsetSeconds) {
+			this.from = from;
+			this.until = until;
+			this.offsetSeconds = offsetSeconds;
+		}
+	}
+
+	/**
+	 * @param zoneId the zone in which local date and time values are created
+	 */
+	ValueConverter(ZoneId zoneId) {
+		zoneRules = zoneId.getRules();
+		window = new OffsetWindow(0, 0, 0);
+	}
+
+	/**
+	 * Converts an ISO date, {@code YYYY-MM-DD}, to its epoch day, or an ISO
+	 * instant to the epoch day of its date in the converter zone.
+	 *
+	 * @param text the date or instant
+	 * @return the epoch day, or {@link #INVALID} if the text is not valid
+	 */
+	long toEpochDay(CharSequence text) {
+		if (text.length() == DATE_LEN) {
+			return parseDate(text);
+		}
+		long epochSecond = parseInstant(text);
+		return epochSecond == INVALID ? INVALID : toEpochDay(epochSecond);
+	}
+
+	/**
+	 * Converts epoch seconds to the epoch day of the date in the converter zone.
+	 *
+	 * @param epochSecond the epoch seconds
+	 * @return the epoch day, or {@link #INVALID} if the value is out of range
+	 */
+	long toEpochDay(long epochSecond) {
+		long localEpochSecond = toLocalEpochSecond(epochSecond);
+		return localEpochSecond == INVALID ? INVALID : Math.floorDiv(localEpochSecond, SECONDS_PER_DAY);
+	}
+
+	/**
+	 * Converts an ISO instant, e.g. {@code 2024-03-01T16:30:00Z}, to the local
+	 * date and time in the converter zone, as epoch seconds. Any fraction of a
+	 * second is dropped.
+	 *
+	 * @param text the instant
+	 * @return the local epoch seconds, or {@link #INVALID} if the text is not
+	 *         valid
+	 */
+	long toLocalEpochSecond(CharSequence text) {
+		long epochSecond = parseInstant(text);
+		return epochSecond == INVALID ? INVALID : toLocalEpochSecond(epochSecond);
+	}
+
+	/**
+	 * Converts epoch seconds to the local date and time in the converter zone, as
+	 * epoch seconds.
+	 *
+	 * @param epochSecond the epoch seconds
+	 * @return the local epoch seconds, or {@link #INVALID} if the value is out of
+	 *         range
+	 */
+	long toLocalEpochSecond(long epochSecond) {
+		if (epochSecond < MIN_EPOCH_SECOND || epochSecond > MAX_EPOCH_SECOND) {
+			return INVALID;
+		}
+		return epochSecond + getOffsetSeconds(epochSecond);
+	}
+
+	/**
+	 * Gets the zone offset at an instant, using the cached offset if the instant
+	 * falls before the next offset transition.
+	 *
+	 * @param epochSecond the instant in epoch seconds
+	 * @return the offset in seconds
+	 */
+	private int getOffsetSeconds(long epochSecond) {
+		OffsetWindow w = window;
+		if (epochSecond >= w.from && epochSecond < w.until) {
+			return w.offsetSeconds;
+		}
+		Instant instant = Instant.ofEpochSecond(epochSecond);
+		ZoneOffsetTransition previous = zoneRules.previousTransition(instant.plusSeconds(1));
+		ZoneOffsetTransition next = zoneRules.nextTransition(instant);
+		w = new OffsetWindow(previous == null ? Long.MIN_VALUE : previous.toEpochSecond(), next == null ? Long.MAX_VALUE : next.toEpochSecond(), zoneRules.getOffset(instant).getTotalSeconds());
+		window = w;
+		return w.offsetSeconds;
+	}
+
+	/**
+	 * Parses an ISO date, {@code YYYY-MM-DD}.
+	 *
+	 * @param text the date
+	 * @return the epoch day, or {@link #INVALID} if the text is not a valid date
+	 */
+	static long parseDate(CharSequence text) {
+		if (text.length() != DATE_LEN) {
+			return INVALID;
+		}
+		return parseDate(text, 0);
+	}
+
+	private static long parseDate(CharSequence text, int i) {
+		int year = parseDigits(text, i, 4);
+		int month = parseDigits(text, i + 5, 2);
+		int day = parseDigits(text, i + 8, 2);
+		if (year < 0 || month < 1 || day < 1 || text.charAt(i + 4) != '-' || text.charAt(i + 7) != '-' || month > 12 || day > lengthOfMonth(year, month)) {
+			return INVALID;
+		}
+		return toEpochDay(year, month, day);
+	}
+
+	/**
+	 * Parses an ISO instant, {@code YYYY-MM-DDTHH:MM:SS[.fffffffff]} followed by
+	 * {@code Z} or an offset of the form {@code +HH:MM[:SS]}, as accepted by
+	 * {@link Instant#parse(CharSequence)}. The fraction of a second is validated
+	 * but not returned.
+	 *
+	 * @param text the instant
+	 * @return the epoch seconds, or {@link #INVALID} if the text is not a valid
+	 *         instant
+	 */
+	static long parseInstant(CharSequence text) {
+		int len = text.length();
+		if (len < 20 || (text.charAt(10) != 'T' && text.charAt(10) != 't')) {
+			return INVALID;
+		}
+		long epochDay = parseDate(text, 0);
+		int hour = parseDigits(text, 11, 2);
+		int minute = parseDigits(text, 14, 2);
+		int second = parseDigits(text, 17, 2);
+		if (epochDay == INVALID || hour < 0 || minute < 0 || second < 0 || text.charAt(13) != ':' || text.charAt(16) != ':' || hour > 24 || minute > 59 || second > 60) {
+			return INVALID;
+		}
+		int fraction = 0;
+		if (second == 60) {
+			if (hour != 23 || minute != 59) {
+				return INVALID;
+			}
+			second = 59; // leap second
+		}
+		int i = 19;
+		if (i < len && text.charAt(i) == '.') {
+			int digits = 0;
+			while (++i < len && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+				if (++digits > 9) {
+					return INVALID;
+				}
+				fraction = fraction * 10 + text.charAt(i) - '0';
+			}
+			while (digits++ < 9) {
+				fraction *= 10;
+			}
+		}
+		if (hour == 24 && (minute != 0 || second != 0 || fraction != 0)) {
+			return INVALID; // only 24:00 is allowed, meaning the end of the day
+		}
+
+		// Offset
+		if (i >= len) {
+			return INVALID;
+		}
+		int offsetSeconds;
+		char c = text.charAt(i);
+		if ((c == 'Z' || c == 'z') && i + 1 == len) {
+			offsetSeconds = 0;
+		} else if (c == '+' || c == '-') {
+			int offsetHours = parseDigits(text, i + 1, 2);
+			int offsetMinutes = parseDigits(text, i + 4, 2);
+			int offsetSecs = 0;
+			int rest = len - i;
+			if (rest == 9 && text.charAt(i + 6) == ':') {
+				offsetSecs = parseDigits(text, i + 7, 2);
+			} else if (rest != 6) {
+				return INVALID;
+			}
+			if (offsetHours < 0 || offsetMinutes < 0 || offsetSecs < 0 || text.charAt(i + 3) != ':' || offsetHours > 18 || offsetMinutes > 59 || offsetSecs > 59) {
+				return INVALID;
+			}
+			offsetSeconds = offsetHours * 3600 + offsetMinutes * 60 + offsetSecs;
+			if (offsetSeconds > 18 * 3600) {
+				return INVALID;
+			}
+			offsetSeconds = c == '-' ? -offsetSeconds : offsetSeconds;
+		} else {
+			return INVALID;
+		}
+
+		return epochDay * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second - offsetSeconds;
+	}
+
+	/**
+	 * Parses a fixed number of decimal digits.
+	 *
+	 * @param text  the text
+	 * @param i     the index of the first digit
+	 * @param count the number of digits
+	 * @return the value, or -1 if the text does not hold the digits
+	 */
+	private static int parseDigits(CharSequence text, int i, int count) {
+		if (i + count > text.length()) {
+			return -1;
+		}
+		int value = 0;
+		for (int end = i + count; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			value = value * 10 + c - '0';
+		}
+		return value;
+	}
+
+	private static int lengthOfMonth(int year, int month) {
+		switch (month) {
+		case 2:
+			return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+		case 4:
+		case 6:
+		case 9:
+		case 11:
+			return 30;
+		default:
+			return 31;
+		}
+	}
+
+	/**
+	 * Gets the epoch day of a valid proleptic Gregorian date.
+	 *
+	 * @param year  the year
+	 * @param month the month, 1 to 12
+	 * @param day   the day of the month
+	 * @return the epoch day
+	 */
+	private static long toEpochDay(int year, int month, int day) {
+		// Count years from March so that the leap day falls at the end of the year
+		long y = month <= 2 ? year - 1 : year;
+		long era = Math.floorDiv(y, 400);
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,156 @@
+package uk.co.pueblo.msm.msmcore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+class SpRetentionTest {
+
+	// Constants
+	private static final int HSEC = 1;
+	private static final int SRC_BUY = 1;
+	private static final int SRC_MANUAL = 5;
+	private static final int SRC_ONLINE = 6;
+	private static final int WEEKLY_CUTOFF = day("2024-01-01"); // a Monday
+	private static final int DAILY_CUTOFF = day("2024-03-01");
+
+	@Test
+	void bucketStartsWeeksOnMonday() {
+		assertEquals(SpRetention.bucket(day("2024-01-01"), WEEKLY_CUTOFF), SpRetention.bucket(day("2024-01-07"), WEEKLY_CUTOFF));
+		assertNotEquals(SpRetention.bucket(day("2024-01-07"), WEEKLY_CUTOFF), SpRetention.bucket(day("2024-01-08"), WEEKLY_CUTOFF));
+		// Epoch day 0 is a Thursday, so the week of 1970-01-01 includes 1969-12-29
+		assertEquals(SpRetention.bucket(day("1969-12-29"), day("1960-01-01")), SpRetention.bucket(day("1970-01-04"), day("1960-01-01")));
+		assertNotEquals(SpRetention.bucket(day("1970-01-04"), day("1960-01-01")), SpRetention.bucket(day("1970-01-05"), day("1960-01-01")));
+		return;
+	}
+
+	@Test
+	void bucketUsesCalendarMonthsBeforeWeeklyCutoff() {
+		assertEquals(SpRetention.bucket(day("2023-12-01"), WEEKLY_CUTOFF), SpRetention.bucket(day("2023-12-31"), WEEKLY_CUTOFF));
+		assertNotEquals(SpRetention.bucket(day("2023-11-30"), WEEKLY_CUTOFF), SpRetention.bucket(day("2023-12-01"), WEEKLY_CUTOFF));
+		assertNotEquals(SpRetention.bucket(day("2022-12-31"), WEEKLY_CUTOFF), SpRetention.bucket(day("2023-01-01"), WEEKLY_CUTOFF));
+		// The last day of the monthly period and the first of the weekly period
+		assertNotEquals(SpRetention.bucket(day("2023-12-31"), WEEKLY_CUTOFF), SpRetention.bucket(day("2024-01-01"), WEEKLY_CUTOFF));
+		return;
+	}
+
+	@Test
+	void keepsLastOnlinePricePerWeekOrMonth() {
+		SpIndex spIndex = new SpIndex();
+		// Monthly period
+		add(spIndex, "2023-11-15", 10, SRC_ONLINE);
+		add(spIndex, "2023-11-30", 11, SRC_ONLINE);
+		add(spIndex, "2023-12-01", 12, SRC_ONLINE);
+		add(spIndex, "2023-12-15", 13, SRC_MANUAL);
+		add(spIndex, "2023-12-20", 14, SRC_BUY);
+		add(spIndex, "2023-12-31", 15, SRC_ONLINE);
+		// Weekly period
+		add(spIndex, "2024-01-01", 20, SRC_ONLINE);
+		add(spIndex, "2024-01-05", 21, SRC_ONLINE);
+		add(spIndex, "2024-01-07", 22, SRC_ONLINE);
+		add(spIndex, "2024-01-08", 23, SRC_ONLINE);
+		add(spIndex, "2024-01-09", 24, SRC_MANUAL);
+		add(spIndex, "2024-01-09", 25, SRC_BUY);
+		add(spIndex, "2024-01-10", 26, SRC_ONLINE);
+		add(spIndex, "2024-01-10", 27, SRC_ONLINE);
+		// A week spanning the daily cutoff
+		add(spIndex, "2024-02-28", 30, SRC_ONLINE);
+		add(spIndex, "2024-02-29", 31, SRC_ONLINE);
+		// Daily period
+		add(spIndex, "2024-03-01", 40, SRC_ONLINE);
+		add(spIndex, "2024-03-01", 41, SRC_ONLINE);
+		add(spIndex, "2024-03-02", 42, SRC_ONLINE);
+
+		SpIndex.History history = spIndex.get(HSEC);
+		boolean[] removal = MsmSecurity.selectCompactRows(history, spIndex.getLatestPrices().getHsp(HSEC), DAILY_CUTOFF, WEEKLY_CUTOFF);
+
+		assertEquals(Set.of(10, 12, 20, 21, 23, 26, 30), removedHsps(history, removal));
+		assertRetained(history, removal);
+		return;
+	}
+
+	@Test
+	void neverRemovesLatestPrice() {
+		SpIndex spIndex = new SpIndex();
+		add(spIndex, "2020-05-04", 1, SRC_ONLINE);
+		add(spIndex, "2020-05-11", 2, SRC_ONLINE);
+		add(spIndex, "2020-05-18", 3, SRC_ONLINE);
+		add(spIndex, "2020-05-25", 4, SRC_ONLINE);
+		SpIndex.History history = spIndex.get(HSEC);
+
+		// All prices are before the daily cutoff, and the last is the latest price
+		assertEquals(4, spIndex.getLatestPrices().getHsp(HSEC));
+		boolean[] removal = MsmSecurity.selectCompactRows(history, 4, DAILY_CUTOFF, WEEKLY_CUTOFF);
+		assertEquals(Set.of(1, 2, 3), removedHsps(history, removal));
+
+		// A latest price that is not the last in its month is kept as well
+		removal = MsmSecurity.selectCompactRows(history, 2, DAILY_CUTOFF, WEEKLY_CUTOFF);
+		assertEquals(Set.of(1, 3), removedHsps(history, removal));
+		return;
+	}
+
+	@Test
+	void selectsNothingWithoutSurplusOnlinePrices() {
+		SpIndex spIndex = new SpIndex();
+		add(spIndex, "2023-06-10", 1, SRC_MANUAL);
+		add(spIndex, "2023-06-12", 2, SRC_ONLINE);
+		add(spIndex, "2023-06-20", 3, SRC_BUY);
+		add(spIndex, "2023-07-03", 4, SRC_ONLINE);
+		add(spIndex, "2024-03-01", 5, SRC_ONLINE);
+		add(spIndex, "2024-03-01", 6, SRC_ONLINE);
+		SpIndex.History history = spIndex.get(HSEC);
+
+		assertNull(MsmSecurity.selectCompactRows(history, 6, DAILY_CUTOFF, WEEKLY_CUTOFF));
+		return;
+	}
+
+	private static void add(SpIndex spIndex, String date, int hsp, int src) {
+		spIndex.add(HSEC, day(date), hsp, src, 1.0, null);
+		return;
+	}
+
+	private static int day(String date) {
+		return (int) LocalDate.parse(date).toEpochDay();
+	}
+
+	private static Set<Integer> removedHsps(SpIndex.History history, boolean[] removal) {
+		Set<Integer> hsps = new TreeSet<>();
+		for (int i = 0; removal != null && i < history.size(); i++) {
+			if (removal[i]) {
+				hsps.add(history.hsp(i));
+			}
+		}
+		return hsps;
+	}
+
+	/**
+	 * Checks that only surplus online prices before the daily cutoff are removed,
+	 * and that the last online price of each week or month is kept.
+	 */
+	private static void assertRetained(SpIndex.History history, boolean[] removal) {
+		Map<Long, Integer> closes = new HashMap<>();
+		for (int i = 0; i < history.size(); i++) {
+			if (history.src(i) != SRC_ONLINE || history.day(i) >= DAILY_CUTOFF) {
+				assertFalse(removal[i], "Removed hsp " + history.hsp(i));
+				continue;
+			}
+			closes.put(SpRetention.bucket(history.day(i), WEEKLY_CUTOFF), i);
+		}
+		for (int i = 0; i < history.size(); i++) {
+			if (history.src(i) == SRC_ONLINE && history.day(i) < DAILY_CUTOFF) {
+				boolean close = closes.get(SpRetention.bucket(history.day(i), WEEKLY_CUTOFF)) == i;
+				assertEquals(!close, removal[i], "Wrong selection of hsp " + history.hsp(i));
+			}
+		}
+		return;
+	}
+}